@@ -0,0 +1,204 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs startup tasks in parallel within a time budget. Tasks can add
+ * more tasks while running. When all tasks are finished, or the budget
+ * is exhausted, the warm-up is finished. Tasks that have not started
+ * are cancelled. Running tasks are not interrupted, they may be
+ * loading shared state other threads are waiting for, so they are left
+ * to finish in the background. Whatever is not warmed up is
+ * initialized lazily, as without a warm-up.
+ */
+public class Warmup {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Warmup.class);
+
+    public enum State {
+        NOT_STARTED, RUNNING, READY, INCOMPLETE
+    }
+
+    private static final String PENDING = "pending";
+    private static final String OK = "ok";
+    private static final String TIMEOUT = "timeout";
+
+    private final String name;
+    // Task name -> status, OK, PENDING, TIMEOUT, or the failure
+    private final Map<String, String> tasks = new LinkedHashMap<>();
+    private final Map<String, Runnable> queued = new LinkedHashMap<>();
+    private final List<Future<?>> futures = new ArrayList<>();
+    private ExecutorService pool;
+    private volatile State state = State.NOT_STARTED;
+    private volatile long elapsedMsecs;
+
+    public Warmup(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns true if the warm-up is started, and all tasks are
+     * finished or the budget is exhausted
+     */
+    public boolean isFinished() {
+        return state == State.READY || state == State.INCOMPLETE;
+    }
+
+    /**
+     * Adds a task. Tasks added after the warm-up is finished are ignored.
+     */
+    public synchronized void add(String taskName, Runnable task) {
+        if (isFinished()) {
+            return;
+        }
+        tasks.put(taskName, PENDING);
+        if (pool == null) {
+            queued.put(taskName, task);
+        } else {
+            submit(taskName, task);
+        }
+    }
+
+    private void submit(String taskName, Runnable task) {
+        futures.add(pool.submit(() -> {
+            try {
+                task.run();
+                setStatus(taskName, OK);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Warm-up task {} failed: {}", taskName, e.toString());
+                setStatus(taskName, e.toString());
+            }
+        }));
+    }
+
+    private synchronized void setStatus(String taskName, String status) {
+        if (!isFinished()) {
+            tasks.put(taskName, status);
+        }
+    }
+
+    /**
+     * Starts the warm-up in the background
+     */
+    public void start(int parallelism, long budgetMsecs) {
+        new DaemonThreadFactory(name + "-warmup").newThread(() -> run(parallelism, budgetMsecs)).start();
+    }
+
+    /**
+     * Runs the warm-up, and returns when it is finished
+     */
+    public void run(int parallelism, long budgetMsecs) {
+        long start = System.currentTimeMillis();
+        long deadline = start + budgetMsecs;
+        synchronized (this) {
+            if (state != State.NOT_STARTED) {
+                return;
+            }
+            state = State.RUNNING;
+            pool = Executors.newFixedThreadPool(Math.max(parallelism, 1), new DaemonThreadFactory(name + "-warmup"));
+            for (Map.Entry<String, Runnable> entry : queued.entrySet()) {
+                submit(entry.getKey(), entry.getValue());
+            }
+            queued.clear();
+        }
+        LOGGER.info("Warm-up {} started", name);
+        try {
+            for (int i = 0;; i++) {
+                Future<?> future;
+                synchronized (this) {
+                    if (i >= futures.size()) {
+                        break;
+                    }
+                    future = futures.get(i);
+                }
+                try {
+                    future.get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    // Failures are recorded by the task
+                }
+            }
+        } catch (TimeoutException e) {
+            LOGGER.warn("Warm-up {} exceeded {} msecs", name, budgetMsecs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            // Don't start the remaining tasks, and let the running ones finish
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+            pool.shutdown();
+            boolean allOk = true;
+            for (Map.Entry<String, String> entry : tasks.entrySet()) {
+                if (PENDING.equals(entry.getValue())) {
+                    entry.setValue(TIMEOUT);
+                }
+                if (!OK.equals(entry.getValue())) {
+                    allOk = false;
+                }
+            }
+            elapsedMsecs = System.currentTimeMillis() - start;
+            state = allOk ? State.READY : State.INCOMPLETE;
+        }
+        LOGGER.info("Warm-up {} finished in {} msecs: {}", name, elapsedMsecs, state);
+    }
+
+    /**
+     * Returns the state, the number of tasks, and the tasks that did
+     * not complete
+     */
+    public synchronized Map<String, Object> getDetails() {
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("state", state.toString());
+        details.put("numTasks", tasks.size());
+        if (isFinished()) {
+            details.put("elapsedMsecs", elapsedMsecs);
+        }
+        Map<String, String> notCompleted = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : tasks.entrySet()) {
+            if (!OK.equals(entry.getValue())) {
+                notCompleted.put(entry.getKey(), entry.getValue());
+            }
+        }
+        details.put("notCompleted", notCompleted);
+        return details;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.common;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+
+/**
+ * Implemented by controllers that report warm-ups in their health
+ * check. The metadata warm-up registers itself with the controller of
+ * the mongo backend through this interface.
+ */
+public interface WarmupRegistry {
+
+    /**
+     * Registers a warm-up to be reported by the health check
+     */
+    void addWarmup(Warmup warmup);
+
+    /**
+     * Initializes the resources the controller uses for the entity,
+     * such as sequence collections. Called by the metadata warm-up for
+     * every active entity version.
+     */
+    void warmupEntity(EntityMetadata md);
+}
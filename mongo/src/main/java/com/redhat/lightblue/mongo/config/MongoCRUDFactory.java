@@ -31,7 +31,9 @@ public class MongoCRUDFactory implements ControllerFactory {
                                            DataSourcesConfiguration ds) {
         try {
             DBResolver resolver = new MongoDBResolver(ds);
-            return new MongoCRUDController(cfg, resolver);
+            MongoCRUDController controller = new MongoCRUDController(cfg, resolver);
+            controller.startWarmup();
+            return controller;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -20,8 +20,9 @@ package com.redhat.lightblue.mongo.config;
 
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,8 +38,10 @@ public class MongoDBResolver implements DBResolver {
     private static final Logger LOGGER = LoggerFactory.getLogger(MongoDBResolver.class);
 
     private final Map<String, MongoConfiguration> datasources;
-    private final Map<String, DB> dbMap = new HashMap<>();
-    private final Map<String, DB> dsMap = new HashMap<>();
+    private final Map<String, DB> dbMap = new ConcurrentHashMap<>();
+    private final Map<String, DB> dsMap = new ConcurrentHashMap<>();
+    // One client for each configuration, regardless of how it is looked up
+    private final Map<MongoConfiguration, DB> cfgMap = new IdentityHashMap<>();
 
     public MongoDBResolver(DataSourcesConfiguration ds) {
         datasources = ds.getDataSourcesByType(MongoConfiguration.class);
@@ -76,7 +79,7 @@ public class MongoDBResolver implements DBResolver {
                     if (cfg == null) {
                         throw new IllegalArgumentException("No datasources for " + store.getDatasourceName());
                     }
-                    db = cfg.getDB();
+                    db = getDB(cfg);
                     dsMap.put(store.getDatasourceName(), db);
                 }
             } else if (store.getDatabaseName() != null) {
@@ -87,7 +90,7 @@ public class MongoDBResolver implements DBResolver {
                     if (cfg == null) {
                         throw new IllegalArgumentException("No datasources for " + store.getDatasourceName());
                     }
-                    db = cfg.getDB();
+                    db = getDB(cfg);
                     dbMap.put(store.getDatabaseName(), db);
                 }
             }
@@ -104,4 +107,13 @@ public class MongoDBResolver implements DBResolver {
         LOGGER.debug("Returning {} for {}", db, store);
         return db;
     }
+
+    private synchronized DB getDB(MongoConfiguration cfg) throws Exception {
+        DB db = cfgMap.get(cfg);
+        if (db == null) {
+            db = cfg.getDB();
+            cfgMap.put(cfg, db);
+        }
+        return db;
+    }
 }
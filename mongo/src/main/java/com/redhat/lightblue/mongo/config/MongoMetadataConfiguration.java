@@ -46,6 +46,14 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
     private String collection;
     private Long cachePeekInterval;
     private Long cacheTTL;
+    private Integer cacheMaxEntries;
+    private Long cacheRefreshAhead;
+    private boolean warmup;
+    private int warmupParallelism = DEFAULT_WARMUP_PARALLELISM;
+    private long warmupTimeout = DEFAULT_WARMUP_TIMEOUT;
+
+    public static final int DEFAULT_WARMUP_PARALLELISM = 4;
+    public static final long DEFAULT_WARMUP_TIMEOUT = 60000l;
 
     private static final MetadataCache metadataCache = new MetadataCache();
 
@@ -78,6 +86,8 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
             mdstore.setDatasourceName(datasource);
 
             metadataCache.setCacheParams(cachePeekInterval, cacheTTL);
+            metadataCache.setMaxEntries(cacheMaxEntries);
+            metadataCache.setRefreshAhead(cacheRefreshAhead);
 
             try {
                 MongoMetadata mongoMetadata = null;
@@ -88,6 +98,9 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
                 }
 
                 mongoMetadata.setRoleMap(getMappedRoles());
+                if (warmup) {
+                    mongoMetadata.startWarmup(warmupParallelism, warmupTimeout);
+                }
 
                 return mongoMetadata;
             } catch (RuntimeException re) {
@@ -155,6 +168,26 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
             if (x != null) {
                 cacheTTL = x.asLong();
             }
+            x = node.get("cacheMaxEntries");
+            if (x != null) {
+                cacheMaxEntries = x.asInt();
+            }
+            x = node.get("cacheRefreshAheadMsec");
+            if (x != null) {
+                cacheRefreshAhead = x.asLong();
+            }
+            x = node.get("warmup");
+            if (x != null) {
+                warmup = x.asBoolean();
+            }
+            x = node.get("warmupParallelism");
+            if (x != null) {
+                warmupParallelism = x.asInt();
+            }
+            x = node.get("warmupTimeoutMsec");
+            if (x != null) {
+                warmupTimeout = x.asLong();
+            }
         }
     }
 }
@@ -0,0 +1,148 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.mongodb.DBObject;
+
+/**
+ * Keeps the number of documents and the estimated size of the current
+ * batch of a bulk write operation, and decides when the batch is
+ * full. The batch size limits come from a {@link BatchSizeCfg.Tuner},
+ * which learns from commit latencies.
+ *
+ * An instance is used by a single thread. {@link #committed} can be
+ * called from other threads.
+ */
+public class AdaptiveBatcher {
+
+    private final BatchSizeCfg.Tuner tuner;
+    private int numDocs;
+    private long numBytes;
+
+    public AdaptiveBatcher(BatchSizeCfg.Tuner tuner) {
+        this.tuner = tuner;
+    }
+
+    /**
+     * Returns a batcher with a fixed batch size
+     */
+    public static AdaptiveBatcher fixed(int batchSize) {
+        return new AdaptiveBatcher(new BatchSizeCfg.Tuner(new BatchSizeCfg.Limits(), false, batchSize));
+    }
+
+    /**
+     * Adds a document to the current batch
+     */
+    public void add(DBObject doc) {
+        add(estimateSize(doc));
+    }
+
+    /**
+     * Adds a document of the given size to the current batch
+     */
+    public void add(long docBytes) {
+        numDocs++;
+        numBytes += docBytes;
+    }
+
+    /**
+     * Returns true if the current batch should be committed
+     */
+    public boolean isFull() {
+        return numDocs >= tuner.getTarget() || numBytes >= tuner.getMaxBytes();
+    }
+
+    public int getNumDocs() {
+        return numDocs;
+    }
+
+    /**
+     * Returns the current target number of documents in a batch
+     */
+    public int getTarget() {
+        return tuner.getTarget();
+    }
+
+    /**
+     * Starts a new batch
+     */
+    public void reset() {
+        numDocs = 0;
+        numBytes = 0;
+    }
+
+    /**
+     * Records the time it took to commit a batch of numDocs
+     * documents. Thread safe.
+     */
+    public void committed(int numDocs, long elapsedNanos) {
+        tuner.committed(numDocs, elapsedNanos);
+    }
+
+    /**
+     * Returns an estimate of the BSON size of the document, without
+     * encoding it
+     */
+    public static long estimateSize(DBObject doc) {
+        long size = 5;
+        for (String key : doc.keySet()) {
+            size += key.length() + 2 + estimateValueSize(doc.get(key));
+        }
+        return size;
+    }
+
+    private static long estimateValueSize(Object value) {
+        if (value instanceof DBObject && !(value instanceof List)) {
+            return estimateSize((DBObject) value);
+        } else if (value instanceof List) {
+            long size = 5;
+            int i = 0;
+            for (Object x : (List) value) {
+                size += Integer.toString(i++).length() + 2 + estimateValueSize(x);
+            }
+            return size;
+        } else if (value instanceof Map) {
+            long size = 5;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += entry.getKey().toString().length() + 2 + estimateValueSize(entry.getValue());
+            }
+            return size;
+        } else if (value instanceof String) {
+            return ((String) value).length() + 5;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length + 5;
+        } else if (value instanceof Binary) {
+            return ((Binary) value).length() + 5;
+        } else if (value instanceof ObjectId) {
+            return 12;
+        } else if (value instanceof Integer || value instanceof Boolean || value == null) {
+            return 4;
+        } else if (value instanceof java.math.BigDecimal) {
+            return 16;
+        } else {
+            return 8;
+        }
+    }
+}
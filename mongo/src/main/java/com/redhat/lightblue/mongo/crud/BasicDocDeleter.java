@@ -20,7 +20,9 @@ package com.redhat.lightblue.mongo.crud;
 
 import com.mongodb.client.model.DBCollectionFindOptions;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,12 +61,53 @@ public class BasicDocDeleter implements DocDeleter {
 
     private final DocTranslator translator;
     private final WriteConcern writeConcern;
+    private AdaptiveBatcher batcher;
+    private boolean deleteByIdSet;
+    private DBObject fields;
+    private boolean hookBatching;
 
     public BasicDocDeleter(DocTranslator translator, WriteConcern writeConcern, int batchSize) {
         super();
         this.translator = translator;
         this.writeConcern = writeConcern;
         this.batchSize = batchSize;
+        this.batcher = AdaptiveBatcher.fixed(batchSize);
+    }
+
+    /**
+     * Sets the batcher deciding when a batch is deleted. By default,
+     * batches have batchSize documents.
+     */
+    public void setBatcher(AdaptiveBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * If set, each batch is deleted with a single remove using the
+     * ids of the batch, instead of one remove for each document
+     */
+    public void setDeleteByIdSet(boolean b) {
+        this.deleteByIdSet = b;
+    }
+
+    /**
+     * Sets the fields to retrieve for the hooks. If null, whole
+     * documents are retrieved.
+     */
+    public void setFields(DBObject fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * If set, hooks are queued and called after each batch is deleted,
+     * and only the documents with errors are kept in the context
+     */
+    public void setHookBatching(boolean b) {
+        this.hookBatching = b;
+    }
+
+    public boolean isHookBatching() {
+        return hookBatching;
     }
 
     @Override
@@ -78,19 +121,21 @@ public class BasicDocDeleter implements DocDeleter {
 
         if(!hookOptimization||ctx.getHookManager().hasHooks(ctx,CRUDOperation.DELETE)) {
             LOGGER.debug("There are hooks, retrieve-delete");
-            try (DBCursor cursor = collection.find(mongoQuery)) {
+            try (DBCursor cursor = fields == null ? collection.find(mongoQuery) : collection.find(mongoQuery, fields)) {
                 // Set read preference to primary for read-for-update operations
                 cursor.setReadPreference(ReadPreference.primary());
 
                 // All docs, to be put into the context
                 ArrayList<DocCtx> contextDocs=new ArrayList<>();
                 // ids to delete from the db
-                List<Object> idsToDelete = new ArrayList<>(batchSize);                
+                List<Object> idsToDelete = new ArrayList<>(batchSize);
+                // Index of the first document of this batch in contextDocs
+                int batchStart=0;
+                // If hooks are called for each batch, docs with errors
+                List<DocCtx> errorDocs=new ArrayList<>();
                 while (cursor.hasNext()) {
 
-                    // We will use this index to access the documents deleted in this batch
-                    int thisBatchIndex=contextDocs.size();
-                    if (idsToDelete.size() < batchSize) {
+                    if (!batcher.isFull()) {
                         // build batch
                         DBObject doc = cursor.next();
                         DocTranslator.TranslatedDoc tdoc=translator.toJson(doc);
@@ -99,44 +144,35 @@ public class BasicDocDeleter implements DocDeleter {
                         docCtx.setCRUDOperationPerformed(CRUDOperation.DELETE);
                         contextDocs.add(docCtx);
                         idsToDelete.add(doc.get(MongoCRUDController.ID_STR));
+                        // Delete requests are small, only the number of documents matters
+                        batcher.add(0);
                     }
                     
-                    if (idsToDelete.size() == batchSize || !cursor.hasNext()) {
+                    if (batcher.isFull() || !cursor.hasNext()) {
                         // batch built or run out of documents                        
-                        BulkWriteOperation bw = collection.initializeUnorderedBulkOperation();
-                        
-                        for(Object id: idsToDelete) {
-                            // doing a bulk of single operations instead of removing by initial query
-                            // that way we know which documents were not removed
-                            bw.find(new BasicDBObject("_id", id)).remove();
-                        }
-                        
-                        BulkWriteResult result = null;
+                        List<DocCtx> batchDocs=contextDocs.subList(batchStart,contextDocs.size());
+                        long start = System.nanoTime();
                         try {
-                            if (writeConcern == null) {
-                                LOGGER.debug("Bulk deleting docs");
-                                result = bw.execute();
+                            if(deleteByIdSet) {
+                                numDeleted+=deleteIdSet(collection,idsToDelete,batchDocs);
                             } else {
-                                LOGGER.debug("Bulk deleting docs with writeConcern={} from execution", writeConcern);
-                                result = bw.execute(writeConcern);
+                                numDeleted+=deleteEach(collection,idsToDelete,batchDocs);
                             }
-                            LOGGER.debug("Bulk deleted docs - attempted {}, deleted {}", idsToDelete.size(), result.getRemovedCount());
-                        } catch (BulkWriteException bwe) {
-                            LOGGER.error("Bulk write exception", bwe);
-                            handleBulkWriteError(bwe.getWriteErrors(), contextDocs.subList(thisBatchIndex,contextDocs.size()));
-                            result = bwe.getWriteResult();
-                        } catch (RuntimeException e) {
-                            LOGGER.error("Exception", e);
-                            throw e;
                         } finally {
-                            
-                            numDeleted+=result.getRemovedCount();
+                            batcher.committed(idsToDelete.size(), System.nanoTime() - start);
+                            batcher.reset();
                             // clear list before processing next batch
                             idsToDelete.clear();
+                            batchStart=contextDocs.size();
+                        }
+                        if(hookBatching) {
+                            callHooks(ctx,contextDocs,errorDocs);
+                            contextDocs.clear();
+                            batchStart=0;
                         }
                     }
                 }
-                ctx.setDocumentStream(new ListDocumentStream<DocCtx>(contextDocs));                
+                ctx.setDocumentStream(new ListDocumentStream<DocCtx>(hookBatching?errorDocs:contextDocs));
             }
         } else {
             LOGGER.debug("There are no hooks, deleting in bulk");
@@ -156,6 +192,95 @@ public class BasicDocDeleter implements DocDeleter {
         response.setNumDeleted(numDeleted);
     }
 
+    /**
+     * Queues and calls the hooks for the documents of a batch, and
+     * collects the documents with errors
+     */
+    private void callHooks(CRUDOperationContext ctx,List<DocCtx> batchDocs,List<DocCtx> errorDocs) {
+        LOGGER.debug("Calling hooks for {} docs",batchDocs.size());
+        ctx.setDocumentStream(new ListDocumentStream<DocCtx>(new ArrayList<>(batchDocs)));
+        ctx.getHookManager().queueHooks(ctx);
+        ctx.getHookManager().callQueuedHooks();
+        for(DocCtx doc:batchDocs) {
+            if(doc.hasErrors()) {
+                errorDocs.add(doc);
+            }
+        }
+    }
+
+    /**
+     * Deletes the documents with one remove operation for each id, so
+     * write errors are reported for each document. Returns the number
+     * of deleted documents.
+     */
+    private int deleteEach(DBCollection collection,List<Object> ids,List<DocCtx> docs) {
+        BulkWriteOperation bw = collection.initializeUnorderedBulkOperation();
+        for(Object id: ids) {
+            // doing a bulk of single operations instead of removing by initial query
+            // that way we know which documents were not removed
+            bw.find(new BasicDBObject("_id", id)).remove();
+        }
+        BulkWriteResult result;
+        try {
+            if (writeConcern == null) {
+                LOGGER.debug("Bulk deleting docs");
+                result = bw.execute();
+            } else {
+                LOGGER.debug("Bulk deleting docs with writeConcern={} from execution", writeConcern);
+                result = bw.execute(writeConcern);
+            }
+            LOGGER.debug("Bulk deleted docs - attempted {}, deleted {}", ids.size(), result.getRemovedCount());
+        } catch (BulkWriteException bwe) {
+            LOGGER.error("Bulk write exception", bwe);
+            handleBulkWriteError(bwe.getWriteErrors(), docs);
+            result = bwe.getWriteResult();
+        } catch (RuntimeException e) {
+            LOGGER.error("Exception", e);
+            throw e;
+        }
+        return result.getRemovedCount();
+    }
+
+    /**
+     * Deletes the documents with a single remove operation using
+     * {_id:{$in:ids}}. If fewer documents are removed than requested,
+     * the documents that are still in the db are found with one query,
+     * and marked with an error. Documents removed by someone else in
+     * the meantime are not errors. Returns the number of deleted
+     * documents.
+     */
+    private int deleteIdSet(DBCollection collection,List<Object> ids,List<DocCtx> docs) {
+        DBObject query=new BasicDBObject("_id",new BasicDBObject("$in",ids));
+        int n;
+        try {
+            if (writeConcern == null) {
+                n=collection.remove(query).getN();
+            } else {
+                n=collection.remove(query,writeConcern).getN();
+            }
+        } catch(MongoException e) {
+            LOGGER.error("Deletion error",e);
+            throw e;
+        }
+        LOGGER.debug("Deleted docs by id - attempted {}, deleted {}",ids.size(),n);
+        if(n<ids.size()) {
+            Set<Object> remaining=new HashSet<>();
+            try (DBCursor cursor=collection.find(query,new BasicDBObject("_id",1))) {
+                cursor.setReadPreference(ReadPreference.primary());
+                while(cursor.hasNext()) {
+                    remaining.add(cursor.next().get("_id"));
+                }
+            }
+            LOGGER.debug("Docs not deleted:{}",remaining);
+            for(int i=0;i<ids.size();i++) {
+                if(remaining.contains(ids.get(i))) {
+                    docs.get(i).addError(Error.get("remove", MongoCrudConstants.ERR_DELETE_ERROR, ids.get(i).toString()));
+                }
+            }
+        }
+        return n;
+    }
+
     private void handleBulkWriteError(List<BulkWriteError> errors, List<DocCtx> docs) {
         for (BulkWriteError e : errors) {
             DocCtx doc = docs.get(e.getIndex());
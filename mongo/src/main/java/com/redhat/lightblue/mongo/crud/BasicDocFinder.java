@@ -19,14 +19,20 @@
 package com.redhat.lightblue.mongo.crud;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.MongoCommandException;
 import com.mongodb.ReadPreference;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.DocCtx;
@@ -41,10 +47,19 @@ public class BasicDocFinder implements DocFinder {
     private static final Logger LOGGER = LoggerFactory.getLogger(BasicDocFinder.class);
     private static final Logger RESULTSET_LOGGER = LoggerFactory.getLogger("com.redhat.lightblue.crud.mongo.slowresults");
 
+    private static final String FACET_COUNT = "count";
+    private static final String FACET_PAGE = "page";
+    private static final String FACET_N = "n";
+
     private final DocTranslator translator;
     private ReadPreference readPreference;
     private int maxResultSetSize = 0;
     private long maxQueryTimeMS = 0;
+    private boolean seekPaging = false;
+    private String continuationToken;
+    private StreamPrefetchCfg prefetch;
+    private boolean rawBson = false;
+    private boolean facetCount = false;
 
     public BasicDocFinder(DocTranslator translator, ReadPreference readPreference) {
         this.translator = translator;
@@ -61,6 +76,50 @@ public class BasicDocFinder implements DocFinder {
         this.maxQueryTimeMS = maxQueryTimeMS;
     }
 
+    /**
+     * Enables keyset (seek) paging. In this mode, the continuation
+     * token returned from the previous page is used to position the
+     * cursor, instead of skipping documents. The from and to
+     * arguments are only used to determine the page size. The token
+     * for the next page is stored in the operation context under
+     * {@link MongoCRUDController#PROP_CONTINUATION_TOKEN} as the
+     * documents are streamed.
+     *
+     * @param seekPaging Enable seek paging
+     * @param continuationToken The token from the previous page, or null for the first page
+     */
+    public void setSeekPaging(boolean seekPaging, String continuationToken) {
+        this.seekPaging = seekPaging;
+        this.continuationToken = continuationToken;
+    }
+
+    /**
+     * If prefetch is enabled in the given configuration, the results
+     * are read ahead and translated in parallel using a {@link
+     * PrefetchingCursorStream}
+     */
+    public void setPrefetch(StreamPrefetchCfg prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * If true, documents are read as {@link RawDBObject}s, and
+     * translated directly from the raw BSON bytes
+     */
+    public void setRawBson(boolean rawBson) {
+        this.rawBson = rawBson;
+    }
+
+    /**
+     * If true, and if counts are requested for a bounded page, the
+     * count and the page are retrieved in a single aggregation using
+     * $facet. If the query cannot be run as an aggregation, the count
+     * and the page are retrieved using two queries.
+     */
+    public void setFacetCount(boolean facetCount) {
+        this.facetCount = facetCount;
+    }
+
     @Override
     public long find(CRUDOperationContext ctx,
                      DBCollection coll,
@@ -69,6 +128,19 @@ public class BasicDocFinder implements DocFinder {
                      DBObject mongoSort,
                      Long from,
                      Long to) {
+        SeekPaging paging = null;
+        DBObject countQuery = mongoQuery;
+        if (seekPaging) {
+            paging = new SeekPaging(mongoSort);
+            mongoSort = paging.getSort();
+            mongoQuery = paging.seekQuery(mongoQuery, continuationToken);
+        }
+        if (facetCount && paging == null && ctx.isComputeCounts() && to != null && !containsWhere(mongoQuery)) {
+            Long n = facetFind(ctx, coll, mongoQuery, mongoProjection, mongoSort, from, to);
+            if (n != null) {
+                return n;
+            }
+        }
         LOGGER.debug("Submitting query {}", mongoQuery);
 
         long executionTime = System.currentTimeMillis();
@@ -79,6 +151,9 @@ public class BasicDocFinder implements DocFinder {
             if (readPreference != null) {
                 cursor.setReadPreference(readPreference);
             }
+            if (rawBson) {
+                cursor.setDecoderFactory(RawDBObject.DECODER_FACTORY);
+            }
 
             if (ctx.isLimitQueryTime()&&maxQueryTimeMS > 0) {
                 cursor.maxTime(maxQueryTimeMS, TimeUnit.MILLISECONDS);
@@ -101,9 +176,15 @@ public class BasicDocFinder implements DocFinder {
             if(f<0) {
                 f=0;
             }
-            cursor.skip(f);
+            // In seek mode, the continuation token positions the
+            // cursor, from and to only determine the page size
+            cursor.skip(paging!=null&&continuationToken!=null?0:f);
             if(ctx.isComputeCounts()) {
-                numMatched=cursor.count();
+                if(paging==null) {
+                    numMatched=cursor.count();
+                } else {
+                    numMatched=count(ctx,coll,countQuery);
+                }
             }
             int t;
             if(to!=null) {
@@ -123,7 +204,18 @@ public class BasicDocFinder implements DocFinder {
             }
             if(retrieve) {
                 LOGGER.debug("Retrieving results");
-                CursorStream stream=new CursorStream(cursor,translator,mongoQuery,executionTime,f,t);
+                CursorStream stream;
+                if(prefetch!=null&&prefetch.isEnabled()) {
+                    stream=new PrefetchingCursorStream(cursor,translator,mongoQuery,executionTime,f,t,
+                                                       prefetch.getProducerPool(),prefetch.getWorkerPool(),
+                                                       prefetch.getQueueDepth(),prefetch.getBatchSize());
+                } else {
+                    stream=new CursorStream(cursor,translator,mongoQuery,executionTime,f,t);
+                }
+                if(paging!=null) {
+                    SeekPaging p=paging;
+                    stream.addRawListener(obj->ctx.setProperty(MongoCRUDController.PROP_CONTINUATION_TOKEN,p.getToken(obj)));
+                }
                 ctx.setDocumentStream(stream);
                 cursorInUse=true;
             } else {
@@ -143,4 +235,111 @@ public class BasicDocFinder implements DocFinder {
         }
     }
 
+    /**
+     * Counts the documents matching the unmodified query, so seek
+     * paged finds report the size of the whole result set
+     */
+    private int count(CRUDOperationContext ctx,DBCollection coll,DBObject query) {
+        try (DBCursor cursor=coll.find(query)) {
+            if (readPreference != null) {
+                cursor.setReadPreference(readPreference);
+            }
+            if (ctx.isLimitQueryTime()&&maxQueryTimeMS > 0) {
+                cursor.maxTime(maxQueryTimeMS, TimeUnit.MILLISECONDS);
+            }
+            return cursor.count();
+        }
+    }
+
+    /**
+     * Runs the query as an aggregation returning the total count and
+     * the requested page in a single document:
+     * <pre>
+     *   [ {$match: query}, {$sort: sort},
+     *     {$facet: { count: [ {$count:"n"} ],
+     *                page: [ {$skip:from}, {$limit:n}, {$project:projection} ] } } ]
+     * </pre>
+     * The sort is done before $facet so it can use an index.
+     *
+     * @return The number of matching documents, or null if the
+     * aggregation failed and the query should be run the usual way
+     */
+    private Long facetFind(CRUDOperationContext ctx,
+                           DBCollection coll,
+                           DBObject mongoQuery,
+                           DBObject mongoProjection,
+                           DBObject mongoSort,
+                           Long from,
+                           long to) {
+        int f = from == null || from < 0 ? 0 : from.intValue();
+        int t = (int) to;
+        if (t < f) {
+            return null;
+        }
+        List<DBObject> pipeline = new ArrayList<>();
+        pipeline.add(new BasicDBObject("$match", mongoQuery == null ? new BasicDBObject() : mongoQuery));
+        if (mongoSort != null) {
+            pipeline.add(new BasicDBObject("$sort", mongoSort));
+        }
+        List<DBObject> page = new ArrayList<>();
+        if (f > 0) {
+            page.add(new BasicDBObject("$skip", f));
+        }
+        page.add(new BasicDBObject("$limit", t - f + 1));
+        if (mongoProjection != null && !mongoProjection.keySet().isEmpty()) {
+            page.add(new BasicDBObject("$project", mongoProjection));
+        }
+        pipeline.add(new BasicDBObject("$facet", new BasicDBObject(FACET_COUNT, Arrays.asList(new BasicDBObject("$count", FACET_N))).
+                                       append(FACET_PAGE, page)));
+        AggregationOptions.Builder options = AggregationOptions.builder();
+        if (ctx.isLimitQueryTime() && maxQueryTimeMS > 0) {
+            options.maxTime(maxQueryTimeMS, TimeUnit.MILLISECONDS);
+        }
+        LOGGER.debug("Submitting aggregation {}", pipeline);
+        long executionTime = System.currentTimeMillis();
+        DBObject result;
+        try (Cursor cursor = readPreference == null ? coll.aggregate(pipeline, options.build())
+             : coll.aggregate(pipeline, options.build(), readPreference)) {
+            result = cursor.hasNext() ? cursor.next() : null;
+        } catch (MongoCommandException e) {
+            LOGGER.warn("Cannot run $facet count for {}, falling back to count query: {}", mongoQuery, e.getMessage());
+            return null;
+        }
+        executionTime = System.currentTimeMillis() - executionTime;
+        long numMatched = 0;
+        List<DBObject> docs = new ArrayList<>();
+        if (result != null) {
+            List<DBObject> count = (List<DBObject>) result.get(FACET_COUNT);
+            if (count != null && !count.isEmpty()) {
+                numMatched = ((Number) count.get(0).get(FACET_N)).longValue();
+            }
+            List<DBObject> found = (List<DBObject>) result.get(FACET_PAGE);
+            if (found != null) {
+                docs = found;
+            }
+        }
+        ctx.setDocumentStream(new CursorStream(docs.iterator(), translator, mongoQuery, executionTime, f, t));
+        if (RESULTSET_LOGGER.isDebugEnabled() && (executionTime > 100)) {
+            RESULTSET_LOGGER.debug("execution_time={}, query={}, from={}, to={}",
+                                   executionTime,
+                                   mongoQuery,
+                                   f, t);
+        }
+        return numMatched;
+    }
+
+    /**
+     * $where cannot be used in $match
+     */
+    private static boolean containsWhere(Object query) {
+        if (query instanceof DBObject) {
+            DBObject obj = (DBObject) query;
+            for (String key : obj.keySet()) {
+                if ("$where".equals(key) || containsWhere(obj.get(key))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 }
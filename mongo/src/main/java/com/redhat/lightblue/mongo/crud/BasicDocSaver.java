@@ -19,9 +19,18 @@
 package com.redhat.lightblue.mongo.crud;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -32,6 +41,8 @@ import com.mongodb.BasicDBObject;
 import com.mongodb.BulkWriteError;
 import com.mongodb.BulkWriteException;
 import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
@@ -44,8 +55,14 @@ import com.redhat.lightblue.crud.CrudConstants;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.interceptor.InterceptPoint;
+import com.redhat.lightblue.metadata.Access;
+import com.redhat.lightblue.metadata.ArrayField;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.ObjectArrayElement;
+import com.redhat.lightblue.metadata.ObjectField;
 import com.redhat.lightblue.metadata.Type;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
@@ -58,7 +75,10 @@ public class BasicDocSaver implements DocSaver {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BasicDocSaver.class);
 
-    private final int batchSize;
+    private AdaptiveBatcher batcher;
+    private ExecutorService prefetchPool;
+    private boolean singleRoundTripUpsert;
+    private Boolean canUpsertBlindly;
 
     private final FieldAccessRoleEvaluator roleEval;
     private final DocTranslator translator;
@@ -102,7 +122,7 @@ public class BasicDocSaver implements DocSaver {
         this.roleEval = roleEval;
         this.md = md;
         this.writeConcern = writeConcern;
-        this.batchSize = batchSize;
+        this.batcher = AdaptiveBatcher.fixed(batchSize);
         this.concurrentModificationDetection=concurrentModificationDetection;
 
         Field[] idf = md.getEntitySchema().getIdentityFields();
@@ -120,6 +140,37 @@ public class BasicDocSaver implements DocSaver {
         }
     }
 
+    /**
+     * Sets the batcher deciding when a batch is written. By default,
+     * batches have batchSize documents.
+     */
+    public void setBatcher(AdaptiveBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    /**
+     * If set, save retrieves the existing documents of the next batch
+     * using this pool while the current batch is written
+     */
+    public void setPrefetchPool(ExecutorService pool) {
+        this.prefetchPool = pool;
+    }
+
+    /**
+     * If set, save with upsert=true writes the documents using
+     * updateOne(upsert=true) without retrieving the existing
+     * documents, when the caller can insert and update all fields of
+     * the entity, there are no update hooks, there are no arrays of
+     * objects, and the identity is _id. Only the fields in the
+     * metadata are written, so fields that are not in the metadata are
+     * kept as with a regular save. Document level interceptors are not
+     * called in this mode, and updated documents have no original
+     * document.
+     */
+    public void setSingleRoundTripUpsert(boolean b) {
+        this.singleRoundTripUpsert = b;
+    }
+
     private final class DocInfo {
         final DBObject newDoc; // translated input doc to be written
         final DocCtx inputDoc; // The doc coming from client
@@ -149,21 +200,151 @@ public class BasicDocSaver implements DocSaver {
                          DBCollection collection,
                          DocTranslator.TranslatedBsonDoc[] dbObjects,
                          DocCtx[] inputDocs) {
+        saveDocs(ctx, op, upsert, collection, i -> dbObjects[i], inputDocs);
+    }
+
+    /**
+     * Inserts or saves documents whose translations are retrieved by
+     * index. The translation of a document is retrieved when it is
+     * added to a batch, so translation of the later documents can
+     * continue while the earlier batches are written.
+     *
+     * @param dbObjects Returns the translation of the i'th input document
+     * @param inputDocs The input documents
+     */
+    public void saveDocs(CRUDOperationContext ctx,
+                         Op op,
+                         boolean upsert,
+                         DBCollection collection,
+                         IntFunction<DocTranslator.TranslatedBsonDoc> dbObjects,
+                         DocCtx[] inputDocs) {
+        if (prefetchPool != null && op == DocSaver.Op.save && !isSingleRoundTrip(ctx, op, upsert)) {
+            pipelinedSaveDocs(ctx, op, upsert, collection, dbObjects, inputDocs);
+            return;
+        }
         // Operate in batches
-        List<DocInfo> batch = new ArrayList<>(batchSize);
-        for (int i = 0; i < dbObjects.length; i++) {
-            DocInfo item = new DocInfo(dbObjects[i].doc, dbObjects[i].rmd,inputDocs[i]);
+        List<DocInfo> batch = new ArrayList<>(batcher.getTarget());
+        batcher.reset();
+        for (int i = 0; i < inputDocs.length; i++) {
+            DocTranslator.TranslatedBsonDoc dbObject = dbObjects.apply(i);
+            DocInfo item = new DocInfo(dbObject.doc, dbObject.rmd, inputDocs[i]);
             batch.add(item);
-            if (batch.size() >= batchSize) {
-                saveDocs(ctx, op, upsert, collection, batch);
+            batcher.add(item.newDoc);
+            if (batcher.isFull()) {
+                saveBatch(ctx, op, upsert, collection, batch);
                 batch.clear();
             }
         }
         if (!batch.isEmpty()) {
-            saveDocs(ctx, op, upsert, collection, batch);
+            saveBatch(ctx, op, upsert, collection, batch);
+        }
+    }
+
+    /**
+     * Saves the documents in batches, retrieving the existing
+     * documents of the next batch while the current batch is
+     * written. Batch boundaries are the same as the sequential
+     * save. If the next batch contains a document of the current
+     * batch, its existing documents are retrieved after the current
+     * batch is written.
+     */
+    private void pipelinedSaveDocs(CRUDOperationContext ctx,
+                                   Op op,
+                                   boolean upsert,
+                                   DBCollection collection,
+                                   IntFunction<DocTranslator.TranslatedBsonDoc> dbObjects,
+                                   DocCtx[] inputDocs) {
+        int[] next = new int[]{0};
+        List<DocInfo> first = nextBatch(dbObjects, inputDocs, next);
+        if (first == null) {
+            return;
+        }
+        List<DocInfo> batch = first;
+        Future<?> retrieval = prefetchPool.submit(() -> retrieveExisting(collection, first));
+        while (batch != null) {
+            List<DocInfo> following = nextBatch(dbObjects, inputDocs, next);
+            Future<?> nextRetrieval = null;
+            if (following != null && !overlaps(batch, following)) {
+                nextRetrieval = prefetchPool.submit(() -> retrieveExisting(collection, following));
+            }
+            long start = System.nanoTime();
+            await(retrieval);
+            writeBatch(ctx, op, upsert, collection, batch);
+            batcher.committed(batch.size(), System.nanoTime() - start);
+            if (following != null && nextRetrieval == null) {
+                LOGGER.debug("Next batch contains documents of the current batch, retrieving after write");
+                retrieveExisting(collection, following);
+                nextRetrieval = CompletableFuture.completedFuture(null);
+            }
+            batch = following;
+            retrieval = nextRetrieval;
+        }
+    }
+
+    /**
+     * Returns the next batch starting at next[0], and sets the ids of
+     * the documents in the batch. Returns null if there are no more
+     * documents.
+     */
+    private List<DocInfo> nextBatch(IntFunction<DocTranslator.TranslatedBsonDoc> dbObjects,
+                                    DocCtx[] inputDocs,
+                                    int[] next) {
+        if (next[0] >= inputDocs.length) {
+            return null;
+        }
+        List<DocInfo> batch = new ArrayList<>(batcher.getTarget());
+        batcher.reset();
+        while (next[0] < inputDocs.length && !batcher.isFull()) {
+            int i = next[0]++;
+            DocTranslator.TranslatedBsonDoc dbObject = dbObjects.apply(i);
+            DocInfo item = new DocInfo(dbObject.doc, dbObject.rmd, inputDocs[i]);
+            item.id = getFieldValues(item.newDoc, idPaths);
+            batch.add(item);
+            batcher.add(item.newDoc);
+        }
+        return batch;
+    }
+
+    private boolean overlaps(List<DocInfo> batch, List<DocInfo> nextBatch) {
+        Set<List<String>> ids = new HashSet<>();
+        for (DocInfo doc : batch) {
+            if (!isNull(doc.id)) {
+                ids.add(idKey(doc.id));
+            }
+        }
+        for (DocInfo doc : nextBatch) {
+            if (!isNull(doc.id) && ids.contains(idKey(doc.id))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void await(Future<?> f) {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
     }
 
+    private void saveBatch(CRUDOperationContext ctx,
+                           Op op,
+                           boolean upsert,
+                           DBCollection collection,
+                           List<DocInfo> batch) {
+        long start = System.nanoTime();
+        saveDocs(ctx, op, upsert, collection, batch);
+        batcher.committed(batch.size(), System.nanoTime() - start);
+        batcher.reset();
+    }
+
     private void saveDocs(CRUDOperationContext ctx,
                           Op op,
                           boolean upsert,
@@ -171,38 +352,259 @@ public class BasicDocSaver implements DocSaver {
                           List<DocInfo> batch) {
         // If this is a save operation, we have to load the existing DB objects
         if (op == DocSaver.Op.save) {
-            LOGGER.debug("Retrieving existing {} documents for save operation", batch.size());
-            List<BasicDBObject> idQueries = new ArrayList<>(batch.size());
             for (DocInfo doc : batch) {
                 doc.id = getFieldValues(doc.newDoc, idPaths);
-                if (!isNull(doc.id)) {
+            }
+            if (isSingleRoundTrip(ctx, op, upsert)) {
+                upsertDocs(ctx, collection, batch);
+                return;
+            }
+            retrieveExisting(collection, batch);
+        }
+        writeBatch(ctx, op, upsert, collection, batch);
+    }
+
+    private boolean isSingleRoundTrip(CRUDOperationContext ctx, Op op, boolean upsert) {
+        if (!singleRoundTripUpsert || op != DocSaver.Op.save || !upsert || ctx.isUpdateIfCurrent()) {
+            return false;
+        }
+        if (canUpsertBlindly == null) {
+            canUpsertBlindly = canUpsertBlindly(ctx);
+            LOGGER.debug("Single round trip upsert for {}: {}", md.getName(), canUpsertBlindly);
+        }
+        return canUpsertBlindly;
+    }
+
+    /**
+     * Returns true if the documents can be written without reading
+     * the existing documents. Access checks and update hooks need the
+     * existing document, so the caller must have insert and update
+     * access to all fields, and there must be no update hooks. Arrays
+     * are written as a whole, so there must be no arrays of objects,
+     * whose elements could have fields that are not in the metadata.
+     */
+    private boolean canUpsertBlindly(CRUDOperationContext ctx) {
+        if (mongoIdFields.length != 1 || !mongoIdFields[0].equals(DocTranslator.ID_PATH.toString())) {
+            return false;
+        }
+        Set<String> roles = ctx.getCallerRoles();
+        if (!md.getAccess().getInsert().hasAccess(roles) || !md.getAccess().getUpdate().hasAccess(roles)) {
+            return false;
+        }
+        if (ctx.getHookManager().hasHooks(ctx, CRUDOperation.UPDATE)) {
+            return false;
+        }
+        FieldCursor cursor = md.getFieldCursor();
+        while (cursor.next()) {
+            FieldTreeNode node = cursor.getCurrentNode();
+            if (node instanceof Field) {
+                Field f = (Field) node;
+                if (!hasAccess(f.getAccess().getInsert(), roles) || !hasAccess(f.getAccess().getUpdate(), roles)) {
+                    return false;
+                }
+            }
+            if (node instanceof ArrayField && ((ArrayField) node).getElement() instanceof ObjectArrayElement) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A field without access roles inherits the entity access
+     */
+    private static boolean hasAccess(Access access, Set<String> roles) {
+        return access.getRoles().isEmpty() || access.hasAccess(roles);
+    }
+
+    /**
+     * Writes the documents using updateOne(upsert=true). The
+     * documents get the docver of this saver, and the write is guarded
+     * so a document that already has this docver is not replaced
+     * again: if the same id is in the request more than once, only one
+     * of them is written, the others fail with duplicate key. A
+     * duplicate key error can also be caused by a concurrent insertion
+     * of the same id, so duplicate key failures are retried once.
+     */
+    private void upsertDocs(CRUDOperationContext ctx,
+                            DBCollection collection,
+                            List<DocInfo> batch) {
+        List<DocInfo> insertList = new ArrayList<>();
+        List<DocInfo> upsertList = new ArrayList<>(batch.size());
+        for (DocInfo doc : batch) {
+            if (isNull(doc.id)) {
+                insertList.add(doc);
+            } else {
+                DocTranslator.populateDocHiddenFields(doc.newDoc, md);
+                DocVerUtil.overwriteDocVer(doc.newDoc, docver);
+                upsertList.add(doc);
+            }
+        }
+        LOGGER.debug("Upsert docs={}, insert docs={}", upsertList.size(), insertList.size());
+        insertDocs(ctx, collection, insertList);
+        for (int attempt = 0; attempt < 2 && !upsertList.isEmpty(); attempt++) {
+            BulkWriteOperation bw = collection.initializeUnorderedBulkOperation();
+            for (DocInfo doc : upsertList) {
+                DBObject query = new BasicDBObject("_id", doc.newDoc.get("_id")).
+                    append(BatchUpdate.DOCVER_FLD0, new BasicDBObject("$ne", docver));
+                bw.find(query).upsert().updateOne(getUpsertUpdate(doc.newDoc));
+            }
+            BulkWriteResult result;
+            List<BulkWriteError> errors;
+            try {
+                result = writeConcern == null ? bw.execute() : bw.execute(writeConcern);
+                errors = new ArrayList<>();
+            } catch (BulkWriteException bwe) {
+                LOGGER.debug("Bulk write exception", bwe);
+                result = bwe.getWriteResult();
+                errors = bwe.getWriteErrors();
+            }
+            Set<Integer> inserted = new HashSet<>();
+            if (result.isAcknowledged()) {
+                for (BulkWriteUpsert u : result.getUpserts()) {
+                    inserted.add(u.getIndex());
+                }
+            }
+            Map<Integer, BulkWriteError> failed = new HashMap<>();
+            for (BulkWriteError e : errors) {
+                failed.put(e.getIndex(), e);
+            }
+            List<DocInfo> retryList = new ArrayList<>();
+            for (int i = 0; i < upsertList.size(); i++) {
+                DocInfo doc = upsertList.get(i);
+                BulkWriteError e = failed.get(i);
+                if (e == null) {
+                    if (inserted.contains(i)) {
+                        doc.inputDoc.setCRUDOperationPerformed(CRUDOperation.INSERT);
+                    } else {
+                        // The existing document is not read, so it is not known
+                        doc.inputDoc.setOriginalDocument(null);
+                        doc.inputDoc.setCRUDOperationPerformed(CRUDOperation.UPDATE);
+                    }
+                } else if (attempt == 0 && MongoCrudConstants.isDuplicate(e.getCode())) {
+                    retryList.add(doc);
+                } else if (MongoCrudConstants.isDuplicate(e.getCode())) {
+                    doc.inputDoc.addError(Error.get("update", MongoCrudConstants.ERR_DUPLICATE, e.getMessage()));
+                } else {
+                    doc.inputDoc.addError(Error.get("update", MongoCrudConstants.ERR_SAVE_ERROR, e.getMessage()));
+                }
+            }
+            LOGGER.debug("Retrying {} docs with duplicate key errors", retryList.size());
+            upsertList = retryList;
+        }
+    }
+
+    /**
+     * Returns the update writing the document with upsert. The fields
+     * of the metadata are set, or unset if they are not in the
+     * document, so the fields of the existing document that are not in
+     * the metadata are kept.
+     */
+    private DBObject getUpsertUpdate(DBObject newDoc) {
+        BasicDBObject set = new BasicDBObject();
+        BasicDBObject unset = new BasicDBObject();
+        addUpsertFields(newDoc, md.getFieldTreeRoot().getChildren(), "", set, unset);
+        set.removeField(DocTranslator.ID_PATH.toString());
+        BasicDBObject update = new BasicDBObject("$set", set);
+        if (!unset.isEmpty()) {
+            update.append("$unset", unset);
+        }
+        return update;
+    }
+
+    private static void addUpsertFields(DBObject doc,
+                                        Iterator<? extends FieldTreeNode> fields,
+                                        String prefix,
+                                        BasicDBObject set,
+                                        BasicDBObject unset) {
+        String hiddenName = DocTranslator.HIDDEN_SUB_PATH.toString();
+        DBObject hidden = (DBObject) doc.get(hiddenName);
+        if (hidden != null) {
+            for (String key : hidden.keySet()) {
+                set.put(prefix + hiddenName + "." + key, hidden.get(key));
+            }
+        }
+        while (fields.hasNext()) {
+            FieldTreeNode field = fields.next();
+            String name = field.getName();
+            String path = prefix + name;
+            Object value = doc.get(name);
+            if (value == null) {
+                if (doc.containsField(name)) {
+                    set.put(path, null);
+                } else {
+                    unset.put(path, "");
+                }
+                // Remove the case insensitive copy of the field, if any
+                if (hidden == null || !hidden.containsField(name)) {
+                    unset.put(prefix + hiddenName + "." + name, "");
+                }
+            } else if (field instanceof ObjectField && value instanceof DBObject
+                       && !(value instanceof List) && !((DBObject) value).keySet().isEmpty()) {
+                addUpsertFields((DBObject) value, field.getChildren(), path + ".", set, unset);
+            } else {
+                set.put(path, value);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the existing documents of the batch, and sets their
+     * oldDoc. The ids of the batch documents must be set. This does
+     * not use the operation context, so it can run in another thread.
+     */
+    private void retrieveExisting(DBCollection collection, List<DocInfo> batch) {
+        LOGGER.debug("Retrieving existing {} documents for save operation", batch.size());
+        List<BasicDBObject> idQueries = new ArrayList<>(batch.size());
+        List<Object> idValues = new ArrayList<>(batch.size());
+        Map<List<String>, DocInfo> docsById = new HashMap<>();
+        for (DocInfo doc : batch) {
+            if (!isNull(doc.id)) {
+                if (mongoIdFields.length == 1) {
+                    idValues.add(doc.id[0]);
+                } else {
                     idQueries.add(doc.getIdQuery());
                 }
+                // If the same id is in the batch more than once, the first doc gets the db doc
+                docsById.putIfAbsent(idKey(doc.id), doc);
             }
-            if (!idQueries.isEmpty()) {
-                BasicDBObject retrievalq = new BasicDBObject("$or", idQueries);
-                LOGGER.debug("Existing document retrieval query={}", retrievalq);
-                try (DBCursor cursor = collection.find(retrievalq)) {
-                    // Make sure we read from primary, because that's where we'll write
-                    cursor.setReadPreference(ReadPreference.primary());
-                    List<DBObject> results = cursor.toArray();
-                    LOGGER.debug("Retrieved {} docs", results.size());
-
-                    // Now associate the docs in the retrieved results with the docs in the batch
-                    for (DBObject dbDoc : results) {
-                        // Get the id from the doc
-                        Object[] id = getFieldValues(dbDoc, idPaths);
-                        // Find this doc in the batch
-                        DocInfo doc = findDoc(batch, id);
-                        if (doc != null) {
-                            doc.oldDoc = dbDoc;
-                        } else {
-                            LOGGER.warn("Cannot find doc with id={}", id);
-                        }
+        }
+        if (!idQueries.isEmpty() || !idValues.isEmpty()) {
+            // Single field identities are retrieved with one $in, which is a single index scan
+            BasicDBObject retrievalq = idValues.isEmpty() ? new BasicDBObject("$or", idQueries)
+                : new BasicDBObject(mongoIdFields[0], new BasicDBObject("$in", idValues));
+            LOGGER.debug("Existing document retrieval query={}", retrievalq);
+            try (DBCursor cursor = collection.find(retrievalq)) {
+                // Make sure we read from primary, because that's where we'll write
+                cursor.setReadPreference(ReadPreference.primary());
+                List<DBObject> results = cursor.toArray();
+                LOGGER.debug("Retrieved {} docs", results.size());
+
+                // Now associate the docs in the retrieved results with the docs in the batch
+                for (DBObject dbDoc : results) {
+                    // Get the id from the doc
+                    Object[] id = getFieldValues(dbDoc, idPaths);
+                    // Find this doc in the batch
+                    DocInfo doc = docsById.get(idKey(id));
+                    if (doc != null) {
+                        doc.oldDoc = dbDoc;
+                    } else {
+                        LOGGER.warn("Cannot find doc with id={}", id);
                     }
                 }
             }
         }
+    }
+
+    /**
+     * Inserts and updates the documents of the batch. For save, the
+     * existing documents must be retrieved.
+     */
+    private void writeBatch(CRUDOperationContext ctx,
+                            Op op,
+                            boolean upsert,
+                            DBCollection collection,
+                            List<DocInfo> batch) {
         // Some docs in the batch will be inserted, some saved, based on the operation. Lets decide that now
         List<DocInfo> saveList;
         List<DocInfo> insertList;
@@ -398,40 +800,18 @@ public class BasicDocSaver implements DocSaver {
         }
     }
 
-    private DocInfo findDoc(List<DocInfo> list, Object[] id) {
-        for (DocInfo doc : list) {
-            if (idEquals(doc.id, id)) {
-                return doc;
-            }
-        }
-        return null;
-    }
-
-    private boolean valueEquals(Object v1, Object v2) {
-        LOGGER.debug("v1={}, v2={}", v1, v2);
-        if (!v1.equals(v2)) {
-            if (v1.toString().equals(v2.toString())) {
-                return true;
-            }
-        } else {
-            return true;
-        }
-        return false;
-    }
-
-    private boolean idEquals(Object[] id1, Object[] id2) {
-        if (id1 != null && id2 != null) {
-            for (int i = 0; i < id1.length; i++) {
-                if ((id1[i] == null && id2[i] == null)
-                        || (id1[i] != null && id2[i] != null && valueEquals(id1[i], id2[i]))) {
-                    ;
-                } else {
-                    return false;
-                }
-            }
-            return true;
+    /**
+     * Returns the lookup key for the identity values. Values are
+     * compared using their string forms, so a value read from the db
+     * matches the value in the input document even if the types
+     * differ.
+     */
+    private static List<String> idKey(Object[] id) {
+        String[] key = new String[id.length];
+        for (int i = 0; i < id.length; i++) {
+            key[i] = id[i] == null ? null : id[i].toString();
         }
-        return false;
+        return Arrays.asList(key);
     }
 
     /**
@@ -0,0 +1,262 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.config.ControllerConfiguration;
+
+/**
+ * This class parses the bulk write batch size settings from the
+ * controller configuration, and keeps the batch size learned for each
+ * entity and operation.
+ *
+ * <pre>
+ *   options: {
+ *     batching: {
+ *       adaptive: true,
+ *       minDocs: 8,
+ *       maxDocs: 1024,
+ *       maxBytes: 8388608,
+ *       targetCommitMs: 250,
+ *       entities: {
+ *         someEntity: { maxDocs: 64, maxBytes: 1048576 }
+ *       }
+ *     }
+ *   }
+ * </pre>
+ *
+ * A batch is full when it has the target number of documents, or
+ * when the estimated BSON size of its documents reaches maxBytes,
+ * whether or not batching is adaptive. If adaptive, the target number
+ * of documents starts from the configured batch size, and after every
+ * commit it moves towards the number of documents that can be
+ * committed in targetCommitMs, within minDocs and maxDocs. Otherwise,
+ * the target is the configured batch size, up to maxDocs. The
+ * entities settings override the global settings for an entity.
+ *
+ * The driver splits bulk writes that exceed the server message size
+ * limit, and a batch can go over maxBytes by at most one document, so
+ * maxBytes is a tuning limit, not a hard one.
+ */
+public class BatchSizeCfg {
+
+    public static final int DEFAULT_MIN_DOCS = 8;
+    public static final int DEFAULT_MAX_DOCS = 1024;
+    public static final long DEFAULT_MAX_BYTES = 8l * 1024l * 1024l;
+    public static final long DEFAULT_TARGET_COMMIT_MS = 250;
+
+    /**
+     * Batch size limits
+     */
+    public static class Limits {
+        private int minDocs = DEFAULT_MIN_DOCS;
+        private int maxDocs = DEFAULT_MAX_DOCS;
+        private long maxBytes = DEFAULT_MAX_BYTES;
+        private long targetCommitMs = DEFAULT_TARGET_COMMIT_MS;
+
+        public Limits() {
+        }
+
+        public Limits(Limits source) {
+            minDocs = source.minDocs;
+            maxDocs = source.maxDocs;
+            maxBytes = source.maxBytes;
+            targetCommitMs = source.targetCommitMs;
+        }
+
+        void parse(ObjectNode node) {
+            JsonNode value = node.get("minDocs");
+            if (value != null)
+                minDocs = value.asInt();
+            value = node.get("maxDocs");
+            if (value != null)
+                maxDocs = value.asInt();
+            value = node.get("maxBytes");
+            if (value != null)
+                maxBytes = value.asLong();
+            value = node.get("targetCommitMs");
+            if (value != null)
+                targetCommitMs = value.asLong();
+        }
+
+        public int getMinDocs() {
+            return minDocs;
+        }
+
+        public void setMinDocs(int n) {
+            minDocs = n;
+        }
+
+        public int getMaxDocs() {
+            return maxDocs;
+        }
+
+        public void setMaxDocs(int n) {
+            maxDocs = n;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        public void setMaxBytes(long n) {
+            maxBytes = n;
+        }
+
+        public long getTargetCommitMs() {
+            return targetCommitMs;
+        }
+
+        public void setTargetCommitMs(long n) {
+            targetCommitMs = n;
+        }
+
+        int clamp(int n) {
+            return Math.max(Math.max(minDocs, 1), Math.min(maxDocs, n));
+        }
+
+        /**
+         * Limits n to maxDocs. minDocs is only a floor for the
+         * adaptive target, a smaller configured batch size is kept.
+         */
+        int limit(int n) {
+            return Math.max(1, Math.min(maxDocs, n));
+        }
+    }
+
+    /**
+     * The batch size learned for an entity and an operation. Commits
+     * can complete in different threads, so the target is updated
+     * atomically.
+     */
+    public static class Tuner {
+        private final Limits limits;
+        private final boolean adaptive;
+        private volatile int target;
+
+        Tuner(Limits limits, boolean adaptive, int initialTarget) {
+            this.limits = limits;
+            this.adaptive = adaptive;
+            this.target = adaptive ? limits.clamp(initialTarget) : limits.limit(initialTarget);
+        }
+
+        public int getTarget() {
+            return target;
+        }
+
+        public long getMaxBytes() {
+            return limits.getMaxBytes();
+        }
+
+        /**
+         * Records the time it took to commit numDocs documents
+         */
+        public void committed(int numDocs, long elapsedNanos) {
+            if (adaptive && numDocs > 0) {
+                double elapsedMs = Math.max(elapsedNanos / 1000000.0, 1.0);
+                int ideal = (int) Math.min(Integer.MAX_VALUE, numDocs * limits.getTargetCommitMs() / elapsedMs);
+                synchronized (this) {
+                    // Move halfway to the ideal size, so a single slow commit doesn't collapse the batch size
+                    target = limits.clamp((target + ideal) / 2);
+                }
+            }
+        }
+    }
+
+    private boolean adaptive = false;
+    private final Limits defaultLimits = new Limits();
+    private final Map<String, Limits> entityLimits = new HashMap<>();
+    private final Map<String, Tuner> tuners = new ConcurrentHashMap<>();
+
+    public BatchSizeCfg(ControllerConfiguration controllerCfg) {
+        if (controllerCfg != null) {
+            ObjectNode options = controllerCfg.getOptions();
+            if (options != null) {
+                options = (ObjectNode) options.get("batching");
+                if (options != null) {
+                    JsonNode value = options.get("adaptive");
+                    if (value != null)
+                        adaptive = value.asBoolean();
+                    defaultLimits.parse(options);
+                    ObjectNode entities = (ObjectNode) options.get("entities");
+                    if (entities != null) {
+                        for (Iterator<Map.Entry<String, JsonNode>> itr = entities.fields(); itr.hasNext();) {
+                            Map.Entry<String, JsonNode> entry = itr.next();
+                            Limits limits = new Limits(defaultLimits);
+                            limits.parse((ObjectNode) entry.getValue());
+                            entityLimits.put(entry.getKey(), limits);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * If true, batch sizes are adjusted using commit latencies and
+     * document sizes
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean b) {
+        adaptive = b;
+        tuners.clear();
+    }
+
+    public Limits getDefaultLimits() {
+        return defaultLimits;
+    }
+
+    /**
+     * Returns the limits for the entity
+     */
+    public Limits getLimits(String entityName) {
+        Limits limits = entityLimits.get(entityName);
+        return limits == null ? defaultLimits : limits;
+    }
+
+    /**
+     * Returns the tuner for the entity and the operation
+     *
+     * @param entityName The entity name
+     * @param operation The operation, batch sizes are learned separately for each operation
+     * @param batchSize The configured batch size. This is the
+     * initial target if adaptive, the fixed target otherwise
+     */
+    public Tuner getTuner(String entityName, String operation, int batchSize) {
+        return tuners.computeIfAbsent(entityName + ":" + operation,
+                                      k -> new Tuner(getLimits(entityName), adaptive, batchSize));
+    }
+
+    /**
+     * Returns a batcher for a single operation
+     */
+    public AdaptiveBatcher getBatcher(String entityName, String operation, int batchSize) {
+        return new AdaptiveBatcher(getTuner(entityName, operation, batchSize));
+    }
+}
@@ -21,6 +21,7 @@ package com.redhat.lightblue.mongo.crud;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -62,6 +63,17 @@ public interface BatchUpdate {
      * contain the original docver as read from the db
      */
     void addDoc(DBObject doc);
+
+    /**
+     * Adds a document to the current batch, writing only the changes
+     * in update instead of replacing the document. If update is null,
+     * the document is replaced. The update is computed by {@link
+     * DocDiff}, and does not include the docver, which is added by
+     * the implementation.
+     */
+    default void addDoc(DBObject doc, DBObject update) {
+        addDoc(doc);
+    }
     
     /**
      * Returns the number of queued requests
@@ -128,6 +140,34 @@ public interface BatchUpdate {
         return ret;
     }
 
+    /**
+     * Adds the docver of doc to the update. Any docver change in the
+     * update is overwritten.
+     */
+    public static DBObject addDocVer(DBObject update, DBObject doc) {
+        String hidden = DocTranslator.HIDDEN_SUB_PATH.toString();
+        DBObject set = (DBObject) update.get("$set");
+        if (set == null) {
+            update.put("$set", set = new BasicDBObject());
+        }
+        DBObject unset = (DBObject) update.get("$unset");
+        for (DBObject x : new DBObject[] {set, unset}) {
+            if (x != null) {
+                for (Iterator<String> itr = x.keySet().iterator(); itr.hasNext();) {
+                    String key = itr.next();
+                    if (key.equals(DOCVER_FLD) || key.startsWith(DOCVER_FLD + ".")) {
+                        itr.remove();
+                    }
+                }
+            }
+        }
+        // If the whole hidden object is written, it contains the docver
+        if (!set.containsField(hidden)) {
+            set.put(DOCVER_FLD, DocVerUtil.getVersionList(doc));
+        }
+        return update;
+    }
+
     /**
      * Returns the set of document ids that were not updated with docver
      *
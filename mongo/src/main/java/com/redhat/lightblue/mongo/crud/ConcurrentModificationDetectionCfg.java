@@ -32,7 +32,9 @@ import com.redhat.lightblue.config.ControllerConfiguration;
  *     concurrentModification: {
  *      detection: true,
  *      failureRetryCount:3,
- *      reevaluateQueryForRetry: true
+ *      reevaluateQueryForRetry: true,
+ *      retryBackoffMs: 10,
+ *      maxRetryBackoffMs: 200
  *    }
  * </pre>
  */
@@ -40,6 +42,8 @@ public class ConcurrentModificationDetectionCfg {
     private boolean detect=true;
     private int failureRetryCount=3;
     private boolean reevaluateQueryForRetry=true;
+    private long retryBackoffMs=10;
+    private long maxRetryBackoffMs=200;
 
     public ConcurrentModificationDetectionCfg(ControllerConfiguration controllerCfg) {
         if(controllerCfg!=null) {
@@ -56,6 +60,12 @@ public class ConcurrentModificationDetectionCfg {
                     value=options.get("reevaluateQueryForRetry");
                     if(value!=null)
                         reevaluateQueryForRetry=value.asBoolean();
+                    value=options.get("retryBackoffMs");
+                    if(value!=null)
+                        retryBackoffMs=value.asLong();
+                    value=options.get("maxRetryBackoffMs");
+                    if(value!=null)
+                        maxRetryBackoffMs=value.asLong();
                 }
             }
         }
@@ -97,4 +107,25 @@ public class ConcurrentModificationDetectionCfg {
     public void setReevaluateQueryForRetry(boolean b) {
         reevaluateQueryForRetry=b;
     }
+
+    /**
+     * Base delay before retrying failed updates again. The delay
+     * doubles with every retry, up to maxRetryBackoffMs, and a random
+     * delay up to that limit is used. The first retry is not delayed.
+     */
+    public long getRetryBackoffMs() {
+        return retryBackoffMs;
+    }
+
+    public void setRetryBackoffMs(long n) {
+        retryBackoffMs=n;
+    }
+
+    public long getMaxRetryBackoffMs() {
+        return maxRetryBackoffMs;
+    }
+
+    public void setMaxRetryBackoffMs(long n) {
+        maxRetryBackoffMs=n;
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for concurrent modification retries. The documents that
+ * are retried most are kept as hot ids, as collection:_id. About
+ * MAX_HOT_IDS documents are tracked. When a new document is retried
+ * and the hot ids are full, all hot id counts are halved and the ones
+ * that drop to zero are removed, or if none does, the coldest one is
+ * removed. So the hot ids follow the recent contention, and documents
+ * that stopped being contended age out.
+ */
+public class ContentionStats {
+
+    public static final int MAX_HOT_IDS = 1000;
+
+    private final AtomicLong retryRounds = new AtomicLong();
+    private final AtomicLong retriedDocs = new AtomicLong();
+    private final AtomicLong successfulRetries = new AtomicLong();
+    private final AtomicLong failedRetries = new AtomicLong();
+    private final AtomicLong lostDocs = new AtomicLong();
+    private final Map<String, AtomicLong> hotIds = new ConcurrentHashMap<>();
+
+    void roundStarted() {
+        retryRounds.incrementAndGet();
+    }
+
+    void retried(String collection, Object id) {
+        retriedDocs.incrementAndGet();
+        String key = collection + ":" + id;
+        AtomicLong n = hotIds.get(key);
+        if (n == null) {
+            if (hotIds.size() >= MAX_HOT_IDS) {
+                decay();
+            }
+            n = hotIds.computeIfAbsent(key, k -> new AtomicLong());
+        }
+        n.incrementAndGet();
+    }
+
+    /**
+     * Halves the hot id counts, and removes the ones that drop to
+     * zero. If nothing is removed, removes the coldest one.
+     */
+    private synchronized void decay() {
+        if (hotIds.size() < MAX_HOT_IDS) {
+            return;
+        }
+        Map.Entry<String, AtomicLong> coldest = null;
+        boolean removed = false;
+        for (Iterator<Map.Entry<String, AtomicLong>> itr = hotIds.entrySet().iterator(); itr.hasNext();) {
+            Map.Entry<String, AtomicLong> entry = itr.next();
+            long value = entry.getValue().updateAndGet(x -> x / 2);
+            if (value == 0) {
+                itr.remove();
+                removed = true;
+            } else if (coldest == null || value < coldest.getValue().get()) {
+                coldest = entry;
+            }
+        }
+        if (!removed && coldest != null) {
+            hotIds.remove(coldest.getKey());
+        }
+    }
+
+    void succeeded(int n) {
+        successfulRetries.addAndGet(n);
+    }
+
+    void failed(int n) {
+        failedRetries.addAndGet(n);
+    }
+
+    void lost() {
+        lostDocs.incrementAndGet();
+    }
+
+    /**
+     * Number of retry rounds
+     */
+    public long getRetryRounds() {
+        return retryRounds.get();
+    }
+
+    /**
+     * Number of document retries, a document can be retried in more than one round
+     */
+    public long getRetriedDocs() {
+        return retriedDocs.get();
+    }
+
+    public long getSuccessfulRetries() {
+        return successfulRetries.get();
+    }
+
+    public long getFailedRetries() {
+        return failedRetries.get();
+    }
+
+    /**
+     * Number of retried documents that were deleted, or no longer match the query
+     */
+    public long getLostDocs() {
+        return lostDocs.get();
+    }
+
+    /**
+     * Returns the n most retried documents, and their retry counts
+     */
+    public Map<String, Long> getHotIds(int n) {
+        Map<String, Long> ret = new LinkedHashMap<>();
+        hotIds.entrySet().stream().
+            sorted((e1, e2) -> Long.compare(e2.getValue().get(), e1.getValue().get())).
+            limit(n).
+            forEachOrdered(e -> ret.put(e.getKey(), e.getValue().get()));
+        return ret;
+    }
+
+    int getNumHotIds() {
+        return hotIds.size();
+    }
+
+    public void reset() {
+        retryRounds.set(0);
+        retriedDocs.set(0);
+        successfulRetries.set(0);
+        failedRetries.set(0);
+        lostDocs.set(0);
+        hotIds.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "retryRounds=" + retryRounds + " retriedDocs=" + retriedDocs
+            + " successfulRetries=" + successfulRetries + " failedRetries=" + failedRetries
+            + " lostDocs=" + lostDocs + " hotIds=" + getHotIds(10);
+    }
+}
@@ -21,11 +21,12 @@ package com.redhat.lightblue.mongo.crud;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.function.Consumer;
 
 import com.mongodb.DBObject;
-import com.mongodb.DBCursor;
 
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.CRUDOperation;
@@ -34,17 +35,23 @@ import com.redhat.lightblue.crud.DocumentStream;
 public class CursorStream implements DocumentStream<DocCtx> {
     private static final Logger RESULTSET_LOGGER = LoggerFactory.getLogger("com.redhat.lightblue.crud.mongo.slowresults");
 
-    private final DBCursor cursor;
-    private final DocTranslator translator;
+    protected final Iterator<DBObject> cursor;
+    protected final DocTranslator translator;
     private long retrievalStart=0;
     private int dataSize=0;
+    private int numRetrieved=0;
     private final DBObject mongoQuery;
     private final long executionTime;
     private final long from;
     private final long to;
     private final ArrayList<Consumer<DocCtx>> listeners=new ArrayList<>();
+    private final ArrayList<Consumer<DBObject>> rawListeners=new ArrayList<>();
 
-    public CursorStream(DBCursor cursor,DocTranslator translator,DBObject mongoQuery,long executionTime,long from,long to) {
+    /**
+     * @param cursor The documents to stream. This is usually a DBCursor, but
+     * can be any iterator. If it is closeable, it is closed when the stream is closed.
+     */
+    public CursorStream(Iterator<DBObject> cursor,DocTranslator translator,DBObject mongoQuery,long executionTime,long from,long to) {
         this.cursor=cursor;
         this.translator=translator;
         this.mongoQuery=mongoQuery;
@@ -61,22 +68,47 @@ public class CursorStream implements DocumentStream<DocCtx> {
 
     @Override
     public DocCtx next() {
-        if(retrievalStart==0)
-            retrievalStart=System.currentTimeMillis();
+        startRetrieval();
         DBObject obj=cursor.next();
         DocTranslator.TranslatedDoc d=translator.toJson(obj);
-        dataSize+=DocTranslator.size(d);
-        if(!hasNext()) {
+        return deliver(obj,newDocCtx(d),DocTranslator.size(d));
+    }
+
+    /**
+     * Builds the DocCtx for a translated document found by this stream
+     */
+    protected static DocCtx newDocCtx(DocTranslator.TranslatedDoc d) {
+        DocCtx ctx=new DocCtx(d.doc,d.rmd);
+        ctx.setCRUDOperationPerformed(CRUDOperation.FIND);
+        return ctx;
+    }
+
+    protected void startRetrieval() {
+        if(retrievalStart==0)
+            retrievalStart=System.currentTimeMillis();
+    }
+
+    /**
+     * Notifies the listeners about a retrieved document, and logs
+     * the retrieval statistics after the last document
+     *
+     * @param obj The document as read from the db
+     * @param ctx The translated document
+     * @param size The size of the translated document
+     */
+    protected DocCtx deliver(DBObject obj,DocCtx ctx,int size) {
+        for(Consumer<DBObject> x:rawListeners)
+            x.accept(obj);
+        dataSize+=size;
+        numRetrieved++;
+        if(RESULTSET_LOGGER.isDebugEnabled()&&!hasNext()) {
             long retrievalTime=System.currentTimeMillis()-retrievalStart;
-            if (RESULTSET_LOGGER.isDebugEnabled() && (retrievalTime > 100 ) ) {
+            if (retrievalTime > 100) {
                 RESULTSET_LOGGER.debug("execution_time={}, retrieval_time={}, resultset_size={}, data_size={}, query={}, from={}, to={}",
-                                       executionTime, retrievalTime, cursor.numSeen(),dataSize,
+                                       executionTime, retrievalTime, numRetrieved,dataSize,
                                        mongoQuery, from, to);
             }
         }
-        
-        DocCtx ctx=new DocCtx(d.doc,d.rmd);
-        ctx.setCRUDOperationPerformed(CRUDOperation.FIND);
         for(Consumer<DocCtx> x:listeners)
             x.accept(ctx);
         return ctx;
@@ -84,13 +116,27 @@ public class CursorStream implements DocumentStream<DocCtx> {
 
     @Override
     public void close() {
-        try{
-            cursor.close();
-        } catch (Exception e) {}
+        closeCursor();
+    }
+
+    protected void closeCursor() {
+        if(cursor instanceof Closeable) {
+            try{
+                ((Closeable)cursor).close();
+            } catch (Exception e) {}
+        }
     }
     @Override
     public void addListener(Consumer<DocCtx> dest) {
         listeners.add(dest);
     }
+
+    /**
+     * Adds a listener that is called with the document as read from
+     * the db, before translation
+     */
+    public void addRawListener(Consumer<DBObject> dest) {
+        rawListeners.add(dest);
+    }
         
 }
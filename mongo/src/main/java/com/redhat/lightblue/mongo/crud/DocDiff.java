@@ -0,0 +1,163 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.bson.BasicBSONEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import com.redhat.lightblue.util.DocComparator;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Computes a mongo update expression that turns a document as read
+ * from the db into its updated version, so only the modified fields
+ * are written instead of the whole document.
+ *
+ * Modified and added fields are written using $set, removed fields
+ * are removed using $unset. If array elements are added, removed or
+ * moved, the whole array is written using $set. Modifications
+ * within array elements that stay in place are written using the
+ * element index. If the update expression is not smaller than the
+ * document, null is returned, and the document should be replaced.
+ */
+public final class DocDiff {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DocDiff.class);
+
+    private DocDiff() {
+    }
+
+    /**
+     * Returns the update expression that turns oldDoc into newDoc, or
+     * null if the document should be replaced. The returned update
+     * refers to the values in newDoc.
+     *
+     * @param merge The comparator for the entity. BsonMerge keeps
+     * state, so it cannot be shared between threads
+     * @param oldDoc The document as read from the db
+     * @param newDoc The updated document
+     */
+    public static DBObject getUpdate(BsonMerge merge, DBObject oldDoc, DBObject newDoc) {
+        DocComparator.Difference<Object> diff;
+        try {
+            diff = merge.compareNodesWithFallback(oldDoc, newDoc);
+        } catch (Exception e) {
+            LOGGER.debug("Cannot compute diff for {}, replacing: {}", newDoc.get("_id"), e);
+            return null;
+        }
+        TreeSet<Path> setFields = new TreeSet<>(DocDiff::comparePaths);
+        TreeSet<Path> unsetFields = new TreeSet<>(DocDiff::comparePaths);
+        for (DocComparator.Delta<Object> delta : diff.getDelta()) {
+            if (delta instanceof DocComparator.Removal) {
+                Path field = delta.getField1();
+                if (isArrayElement(field)) {
+                    setFields.add(field.prefix(-1));
+                } else {
+                    unsetFields.add(field);
+                }
+            } else if (delta instanceof DocComparator.Move) {
+                setFields.add(delta.getField2().prefix(-1));
+            } else if (delta instanceof DocComparator.Modification
+                       && !delta.getField1().equals(delta.getField2())) {
+                // Modified, and moved to another array index
+                Path field = delta.getField2();
+                setFields.add(field.prefix(firstIndex(field)));
+            } else {
+                Path field = delta.getField2();
+                setFields.add(isArrayElement(field) ? field.prefix(-1) : field);
+            }
+        }
+        removeDescendants(setFields, unsetFields);
+        removeDescendants(unsetFields, setFields);
+
+        DBObject update = new BasicDBObject();
+        if (!setFields.isEmpty()) {
+            DBObject set = new BasicDBObject();
+            for (Path p : setFields) {
+                set.put(p.toString(), DocTranslator.getDBObject(newDoc, p));
+            }
+            update.put("$set", set);
+        }
+        if (!unsetFields.isEmpty()) {
+            DBObject unset = new BasicDBObject();
+            for (Path p : unsetFields) {
+                unset.put(p.toString(), "");
+            }
+            update.put("$unset", unset);
+        }
+        if (update.keySet().isEmpty()) {
+            return update;
+        }
+        BasicBSONEncoder encoder = new BasicBSONEncoder();
+        int updateSize = encoder.encode(update).length;
+        int docSize = encoder.encode(newDoc).length;
+        LOGGER.debug("Diff size={}, document size={}", updateSize, docSize);
+        return updateSize < docSize ? update : null;
+    }
+
+    /**
+     * Returns the number of segments before the first array index in
+     * the path, or -1 if there are no array indexes
+     */
+    private static int firstIndex(Path p) {
+        int n = p.numSegments();
+        for (int i = 0; i < n; i++) {
+            if (p.isIndex(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isArrayElement(Path p) {
+        int n = p.numSegments();
+        return n > 1 && p.isIndex(n - 1);
+    }
+
+    /**
+     * Removes the fields that are descendants of another field in from
+     * or other. Mongo rejects updates with conflicting paths.
+     */
+    private static void removeDescendants(TreeSet<Path> from, TreeSet<Path> other) {
+        List<Path> ancestors = new ArrayList<>(from);
+        ancestors.addAll(other);
+        for (Iterator<Path> itr = from.iterator(); itr.hasNext();) {
+            Path p = itr.next();
+            for (Path a : ancestors) {
+                if (a.numSegments() < p.numSegments() && p.prefix(a.numSegments()).equals(a)) {
+                    itr.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int comparePaths(Path p1, Path p2) {
+        return p1.toString().compareTo(p2.toString());
+    }
+}
@@ -24,8 +24,14 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
+import org.bson.BsonBinarySubType;
+import org.bson.BsonReader;
+import org.bson.BsonType;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -109,6 +115,78 @@ public class DocTranslator {
         }
     }
 
+    /**
+     * Documents translated to BSON in chunks by a thread pool. A
+     * document can be read as soon as its chunk is translated, while
+     * the later chunks are still being translated. The translated
+     * documents have the same indexes as the input documents.
+     */
+    public static class ParallelBsonTranslation {
+        private final TranslatedBsonDoc[] docs;
+        private final int chunkSize;
+        private final List<Future<?>> chunks;
+
+        private ParallelBsonTranslation(DocTranslator translator,
+                                        List<? extends JsonDoc> input,
+                                        ExecutorService pool,
+                                        int chunkSize) {
+            this.docs = new TranslatedBsonDoc[input.size()];
+            this.chunkSize = Math.max(chunkSize, 1);
+            this.chunks = new ArrayList<>(docs.length / this.chunkSize + 1);
+            for (int start = 0; start < docs.length; start += this.chunkSize) {
+                int from = start;
+                int to = Math.min(start + this.chunkSize, docs.length);
+                chunks.add(pool.submit(() -> {
+                    for (int i = from; i < to; i++) {
+                        docs[i] = translator.toBson(input.get(i));
+                    }
+                }));
+            }
+        }
+
+        public int size() {
+            return docs.length;
+        }
+
+        /**
+         * Returns the translation of the i'th document, waiting for its
+         * chunk if necessary. Translation errors are rethrown.
+         */
+        public TranslatedBsonDoc get(int i) {
+            try {
+                chunks.get(i / chunkSize).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            return docs[i];
+        }
+
+        /**
+         * Returns all translated documents, waiting for all chunks
+         */
+        public TranslatedBsonDoc[] getAll() {
+            for (int i = 0; i < docs.length; i += chunkSize) {
+                get(i);
+            }
+            return docs;
+        }
+
+        /**
+         * Cancels the chunks that are not started yet
+         */
+        public void cancel() {
+            for (Future<?> f : chunks) {
+                f.cancel(false);
+            }
+        }
+    }
+
     /**
      * Constructs a translator using the given metadata resolver and factory
      */
@@ -131,6 +209,17 @@ public class DocTranslator {
         return ret;
     }
 
+    /**
+     * Translates a list of JSON documents to DBObjects in chunks of
+     * chunkSize documents using the pool. The returned object gives
+     * access to the translated documents as their chunks complete.
+     */
+    public ParallelBsonTranslation toBson(List<? extends JsonDoc> docs,
+                                          ExecutorService pool,
+                                          int chunkSize) {
+        return new ParallelBsonTranslation(this, docs, pool, chunkSize);
+    }
+
     /**
      * Translates a JSON document to DBObject. Translation is metadata driven.
      */
@@ -288,9 +377,224 @@ public class DocTranslator {
     }
 
 
-    private TranslatedDoc toJson(DBObject object, EntityMetadata md) {
+    TranslatedDoc toJson(DBObject object, EntityMetadata md) {
         // Translation is metadata driven. We don't know how to
         // translate something that's not defined in metadata.
+        TranslationPlan plan = TranslationPlan.get(md);
+        if (plan.isEmpty()) {
+            return null;
+        }
+        if (object instanceof RawDBObject) {
+            try {
+                BsonReader reader = ((RawDBObject) object).getReader();
+                return new TranslatedDoc(new JsonDoc(rawObjectToJson(object, reader, plan)), getDocMetadata(object));
+            } catch (UnsupportedBsonValue e) {
+                LOGGER.debug("Cannot read {} from raw bson, using lazy decoding", e.getMessage());
+            }
+        }
+        return new TranslatedDoc(new JsonDoc(objectToJson(object, object, plan)), getDocMetadata(object));
+    }
+
+    /**
+     * Thrown when a raw BSON value cannot be translated directly. The
+     * document is then translated through the DBObject interface
+     */
+    private static class UnsupportedBsonValue extends RuntimeException {
+        UnsupportedBsonValue(String msg) {
+            super(msg, null, false, false);
+        }
+    }
+
+    /**
+     * Translates the document the reader is positioned at. Values are
+     * collected in plan order, so the output has the same field order
+     * as the DBObject translation.
+     */
+    private ObjectNode rawObjectToJson(DBObject root, BsonReader reader, TranslationPlan plan) {
+        JsonNode[] values = new JsonNode[plan.fields.length];
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            int index = plan.indexOf(reader.readName());
+            if (index == -1 || reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.skipValue();
+            } else {
+                values[index] = rawValueToJson(root, reader, plan.fields[index]);
+            }
+        }
+        reader.readEndDocument();
+        ObjectNode node = factory.objectNode();
+        for (int i = 0; i < values.length; i++) {
+            TranslationPlan.FieldInstruction field = plan.fields[i];
+            switch (field.kind) {
+                case RESULT_METADATA:
+                    injectResultMetadata(root, node, field.name);
+                    break;
+                case DOCVER:
+                    injectDocumentVersion(root, node, field.name);
+                    break;
+                default:
+                    if (values[i] != null && !(values[i] instanceof NullNode)) {
+                        node.set(field.name, values[i]);
+                    }
+            }
+        }
+        return node;
+    }
+
+    private JsonNode rawValueToJson(DBObject root, BsonReader reader, TranslationPlan.FieldInstruction field) {
+        BsonType type = reader.getCurrentBsonType();
+        switch (field.kind) {
+            case SIMPLE:
+                return field.type.toJson(factory, readRawValue(reader, field.name));
+            case OBJECT:
+                if (type == BsonType.DOCUMENT && !field.object.isEmpty()) {
+                    return rawObjectToJson(root, reader, field.object);
+                }
+                if (type != BsonType.DOCUMENT) {
+                    LOGGER.error("Expected DBObject, found {} for {}", type, field.name);
+                }
+                reader.skipValue();
+                return null;
+            case ARRAY:
+                if (type == BsonType.ARRAY) {
+                    ArrayNode valueNode = factory.arrayNode();
+                    reader.readStartArray();
+                    while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                        valueNode.add(rawArrayElementToJson(root, reader, field));
+                    }
+                    reader.readEndArray();
+                    return valueNode;
+                }
+                reader.skipValue();
+                return null;
+            default:
+                reader.skipValue();
+                return null;
+        }
+    }
+
+    private JsonNode rawArrayElementToJson(DBObject root, BsonReader reader, TranslationPlan.FieldInstruction field) {
+        BsonType type = reader.getCurrentBsonType();
+        if (type == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        } else if (field.type != null) {
+            return field.type.toJson(factory, readRawValue(reader, field.name));
+        } else if (type == BsonType.DOCUMENT && !field.object.isEmpty()) {
+            return rawObjectToJson(root, reader, field.object);
+        } else {
+            if (type != BsonType.DOCUMENT) {
+                LOGGER.error("Expected DBObject, got {}", type);
+            }
+            reader.skipValue();
+            return null;
+        }
+    }
+
+    /**
+     * Reads a scalar value as the Java object the driver would decode
+     * it to
+     */
+    private static Object readRawValue(BsonReader reader, String fieldName) {
+        switch (reader.getCurrentBsonType()) {
+            case STRING:
+                return reader.readString();
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return reader.readDouble();
+            case BOOLEAN:
+                return reader.readBoolean();
+            case DATE_TIME:
+                return new Date(reader.readDateTime());
+            case OBJECT_ID:
+                return reader.readObjectId();
+            case DECIMAL128:
+                return reader.readDecimal128();
+            case BINARY:
+                if (reader.peekBinarySubType() == BsonBinarySubType.BINARY.getValue()) {
+                    return reader.readBinaryData().getData();
+                }
+                // Other subtypes are decoded as Binary or UUID
+            default:
+                throw new UnsupportedBsonValue(fieldName);
+        }
+    }
+
+    /**
+     * Runs the translation plan for an object level
+     */
+    private ObjectNode objectToJson(DBObject root, DBObject object, TranslationPlan plan) {
+        ObjectNode node = factory.objectNode();
+        for (TranslationPlan.FieldInstruction field : plan.fields) {
+            switch (field.kind) {
+                case RESULT_METADATA:
+                    injectResultMetadata(root, node, field.name);
+                    break;
+                case DOCVER:
+                    injectDocumentVersion(root, node, field.name);
+                    break;
+                default:
+                    // Don't add any null values to the document
+                    Object value = object.get(field.name);
+                    if (value != null) {
+                        JsonNode valueNode = valueToJson(root, value, field);
+                        if (valueNode != null && !(valueNode instanceof NullNode)) {
+                            node.set(field.name, valueNode);
+                        }
+                    }
+            }
+        }
+        return node;
+    }
+
+    @SuppressWarnings("rawtypes")
+    private JsonNode valueToJson(DBObject root, Object value, TranslationPlan.FieldInstruction field) {
+        switch (field.kind) {
+            case SIMPLE:
+                return field.type.toJson(factory, value);
+            case OBJECT:
+                if (value instanceof DBObject) {
+                    return field.object.isEmpty() ? null : objectToJson(root, (DBObject) value, field.object);
+                } else {
+                    LOGGER.error("Expected DBObject, found {} for {}", value.getClass(), field.name);
+                    return null;
+                }
+            case ARRAY:
+                if (value instanceof List) {
+                    ArrayNode valueNode = factory.arrayNode();
+                    for (Object item : (List) value) {
+                        valueNode.add(arrayElementToJson(root, item, field));
+                    }
+                    return valueNode;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    private JsonNode arrayElementToJson(DBObject root, Object value, TranslationPlan.FieldInstruction field) {
+        if (value == null) {
+            return null;
+        } else if (field.type != null) {
+            return field.type.toJson(factory, value);
+        } else if (value instanceof DBObject) {
+            return field.object.isEmpty() ? null : objectToJson(root, (DBObject) value, field.object);
+        } else {
+            LOGGER.error("Expected DBObject, got {}", value.getClass().getName());
+            return null;
+        }
+    }
+
+    /**
+     * Translates the document by walking the metadata, without using
+     * a translation plan. This is the reference implementation for
+     * the translation plans.
+     */
+    TranslatedDoc toJsonByMetadataWalk(DBObject object, EntityMetadata md) {
         FieldCursor cursor = md.getFieldCursor();
         if (cursor.firstChild()) {
             return new TranslatedDoc(new JsonDoc(objectToJson(object,object, md, cursor)),getDocMetadata(object));
@@ -0,0 +1,114 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.redhat.lightblue.util.Error;
+
+/**
+ * The result of a streaming ingestion. Contains the totals, and the
+ * errors of the request. Per document errors are reported in chunk
+ * results as the chunks are written.
+ */
+public class IngestResult {
+
+    private long numRead;
+    private long numInserted;
+    private long numFailed;
+    private Error error;
+
+    /**
+     * The result of a chunk of documents
+     */
+    public static class Chunk {
+        private final long startIndex;
+        private final int numDocs;
+        private final int numInserted;
+        private final Map<Long, List<Error>> errors;
+
+        public Chunk(long startIndex, int numDocs, int numInserted, Map<Long, List<Error>> errors) {
+            this.startIndex = startIndex;
+            this.numDocs = numDocs;
+            this.numInserted = numInserted;
+            this.errors = errors == null ? new HashMap<>() : errors;
+        }
+
+        /**
+         * The index of the first document of the chunk in the input
+         */
+        public long getStartIndex() {
+            return startIndex;
+        }
+
+        public int getNumDocs() {
+            return numDocs;
+        }
+
+        public int getNumInserted() {
+            return numInserted;
+        }
+
+        /**
+         * Errors of the documents that are not inserted, keyed by the
+         * index of the document in the input
+         */
+        public Map<Long, List<Error>> getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Number of documents read from the input
+     */
+    public long getNumRead() {
+        return numRead;
+    }
+
+    public long getNumInserted() {
+        return numInserted;
+    }
+
+    /**
+     * Number of documents that are read but not inserted
+     */
+    public long getNumFailed() {
+        return numFailed;
+    }
+
+    /**
+     * The error that stopped the ingestion, or null if all input is
+     * processed
+     */
+    public Error getError() {
+        return error;
+    }
+
+    void add(Chunk chunk) {
+        numRead += chunk.getNumDocs();
+        numInserted += chunk.getNumInserted();
+        numFailed += chunk.getNumDocs() - chunk.getNumInserted();
+    }
+
+    void setError(Error error) {
+        this.error = error;
+    }
+}
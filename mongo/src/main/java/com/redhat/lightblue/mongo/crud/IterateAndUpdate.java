@@ -18,10 +18,19 @@
  */
 package com.redhat.lightblue.mongo.crud;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -64,7 +73,7 @@ public class IterateAndUpdate implements DocUpdater {
     private static final Logger LOGGER = LoggerFactory.getLogger(IterateAndUpdate.class);
     private static final Logger METRICS = LoggerFactory.getLogger("metrics."+IterateAndUpdate.class.getName());
 
-    private final int batchSize;
+    private AdaptiveBatcher batcher;
 
     private final JsonNodeFactory nodeFactory;
     private final ConstraintValidator validator;
@@ -75,10 +84,202 @@ public class IterateAndUpdate implements DocUpdater {
     private final Projector errorProjector;
     private final WriteConcern writeConcern;
     private final ConcurrentModificationDetectionCfg concurrentModificationDetection;
+    private ExecutorService commitPool;
+    private int maxInFlightBatches = 0;
+    private ForkJoinPool updatePool;
+    private Supplier<ConstraintValidator> validatorFactory;
+    private Supplier<Updater> updaterFactory;
+    private boolean diffUpdates = false;
+
+    /**
+     * A document going through the update stages
+     */
+    private static class DocUpdate {
+        final DBObject document;
+        final int docIndex;
+        DocCtx doc;
+        boolean modified;
+        boolean hasErrors;
+        List<Error> ctxErrors;
+        DocTranslator.TranslatedBsonDoc updatedObject;
+        // If non-null, the changes to write instead of the whole document
+        DBObject mongoUpdate;
+        // Update failure, recorded for the document
+        RuntimeException failure;
+        // Unexpected failure, rethrown by the caller
+        RuntimeException fatal;
+
+        DocUpdate(DBObject document, int docIndex) {
+            this.document = document;
+            this.docIndex = docIndex;
+        }
+    }
+
+    /**
+     * The non-thread-safe objects used by a thread running the update
+     * stages
+     */
+    private static class Worker {
+        final ConstraintValidator validator;
+        final Updater updater;
+        final BsonMerge merge;
+        final Measure measure;
+
+        Worker(ConstraintValidator validator, Updater updater, BsonMerge merge, Measure measure) {
+            this.validator = validator;
+            this.updater = updater;
+            this.merge = merge;
+            this.measure = measure;
+        }
+    }
+
+    /**
+     * Keeps a worker for each thread running the update stages. If
+     * stages are run sequentially, the caller's worker is used.
+     */
+    private class Workers {
+        private final EntityMetadata md;
+        private final Worker caller;
+        private final Map<Thread, Worker> workers = new ConcurrentHashMap<>();
+
+        Workers(EntityMetadata md, Worker caller) {
+            this.md = md;
+            this.caller = caller;
+        }
+
+        Worker get() {
+            if (updatePool == null) {
+                return caller;
+            }
+            return workers.computeIfAbsent(Thread.currentThread(),
+                                           t -> new Worker(validatorFactory.get(), updaterFactory.get(), new BsonMerge(md), new Measure()));
+        }
+
+        List<Measure> getMeasures() {
+            List<Measure> list = new ArrayList<>(workers.size());
+            for (Worker w : workers.values()) {
+                list.add(w.measure);
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Runs a stage on a range of documents, splitting the range
+     */
+    private static class StageTask extends RecursiveAction {
+        private final List<DocUpdate> docs;
+        private final int from;
+        private final int to;
+        private final Consumer<DocUpdate> stage;
+
+        StageTask(List<DocUpdate> docs, int from, int to, Consumer<DocUpdate> stage) {
+            this.docs = docs;
+            this.from = from;
+            this.to = to;
+            this.stage = stage;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                for (int i = from; i < to; i++) {
+                    runStage(docs.get(i), stage);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new StageTask(docs, from, mid, stage), new StageTask(docs, mid, to, stage));
+            }
+        }
+    }
+
+    /**
+     * Commits batches asynchronously, and applies the commit results
+     * to the documents of the batch in submission order. At most
+     * maxInFlightBatches commits run at the same time.
+     */
+    private class CommitPipeline {
+        private final ArrayDeque<Future<BatchUpdate.CommitInfo>> commits = new ArrayDeque<>();
+        private final ArrayDeque<List<DocCtx>> batches = new ArrayDeque<>();
+        private final List<DocCtx> resultDocs;
+        int numUpdated = 0;
+        int numFailed = 0;
+        int numLost = 0;
+
+        CommitPipeline(List<DocCtx> resultDocs) {
+            this.resultDocs = resultDocs;
+        }
+
+        void submit(BatchUpdate sup, List<DocCtx> batch) {
+            while (commits.size() >= maxInFlightBatches) {
+                completeOldest();
+            }
+            batches.addLast(batch);
+            AdaptiveBatcher b = batcher;
+            commits.addLast(commitPool.submit(() -> {
+                long start = System.nanoTime();
+                BatchUpdate.CommitInfo ci = sup.commit();
+                b.committed(batch.size(), System.nanoTime() - start);
+                return ci;
+            }));
+        }
+
+        void completeAll() {
+            while (!commits.isEmpty()) {
+                completeOldest();
+            }
+        }
+
+        /**
+         * Waits for the running commits, ignoring their results. Used
+         * when the update fails, so no writes are left running.
+         */
+        void abort() {
+            for (Future<BatchUpdate.CommitInfo> f : commits) {
+                try {
+                    f.get();
+                } catch (Exception e) {
+                    LOGGER.debug("Ignoring commit failure during abort: {}", e);
+                }
+            }
+            commits.clear();
+            batches.clear();
+        }
+
+        private void completeOldest() {
+            List<DocCtx> batch = batches.removeFirst();
+            BatchUpdate.CommitInfo ci;
+            try {
+                ci = commits.removeFirst().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+            // ci indexes are relative to the batch
+            for (Map.Entry<Integer, Error> entry : ci.errors.entrySet()) {
+                batch.get(entry.getKey()).addError(entry.getValue());
+            }
+            numFailed += ci.errors.size();
+            numUpdated += batch.size() - ci.errors.size() - ci.lostDocs.size();
+            numLost += ci.lostDocs.size();
+            for (int i = 0; i < batch.size(); i++) {
+                if (!ci.lostDocs.contains(i)) {
+                    enforceMemoryLimit(batch.get(i));
+                    resultDocs.add(batch.get(i));
+                }
+            }
+        }
+    }
 
     private class MongoSafeUpdateProtocolForUpdate extends MongoSafeUpdateProtocol {
 
         private final EntityMetadata md;
+        private final Updater updater;
         private final Measure measure;
         private final BsonMerge merge;
 
@@ -87,9 +288,11 @@ public class IterateAndUpdate implements DocUpdater {
                                                 DBObject query,
                                                 ConcurrentModificationDetectionCfg cfg,
                                                 EntityMetadata md,
+                                                Updater updater,
                                                 Measure measure) {
             super(collection,writeConcern,query,cfg);
             this.md=md;
+            this.updater=updater;
             this.measure=measure;
             this.merge=new BsonMerge(md);
         }
@@ -97,7 +300,7 @@ public class IterateAndUpdate implements DocUpdater {
         protected DBObject reapplyChanges(int docIndex,DBObject doc) {
             DocTranslator.TranslatedDoc jsonDoc=translator.toJson(doc);
             // We are bypassing validation here
-            if(!updateDoc(md,jsonDoc.doc,measure))
+            if(!updateDoc(md,jsonDoc.doc,updater,measure))
                 return null;
             return translate(md,jsonDoc.doc,doc,merge,measure).doc;
         }
@@ -121,10 +324,59 @@ public class IterateAndUpdate implements DocUpdater {
         this.projector = projector;
         this.errorProjector = errorProjector;
         this.writeConcern = writeConcern;
-        this.batchSize = batchSize;
+        this.batcher = AdaptiveBatcher.fixed(batchSize);
         this.concurrentModificationDetection = concurrentModificationDetection;
     }
 
+    /**
+     * Enables pipelined commits. When a batch is full, it is committed
+     * using the commit pool while the next batch is read and
+     * updated. At most maxInFlightBatches batches are committed at the
+     * same time. If maxInFlightBatches is 0, batches are committed
+     * synchronously. Updaters are not thread safe, so every batch
+     * committed in the commit pool reapplies its changes using its own
+     * updater, obtained from updaterFactory.
+     */
+    public void setPipelining(ExecutorService commitPool, int maxInFlightBatches, Supplier<Updater> updaterFactory) {
+        this.commitPool = commitPool;
+        this.maxInFlightBatches = maxInFlightBatches;
+        this.updaterFactory = updaterFactory;
+    }
+
+    /**
+     * Enables parallel document updates. Documents are read in batches,
+     * and for each batch, updating, validation, access checks and
+     * translation to BSON run on the given pool. Every pool thread
+     * uses its own validator and updater, obtained from
+     * validatorFactory and updaterFactory. Interceptors are called
+     * from the caller thread in document order, and documents are committed in the order they are read, so the
+     * results are the same as the sequential update.
+     */
+    public void setParallelism(ForkJoinPool updatePool,
+                               Supplier<ConstraintValidator> validatorFactory,
+                               Supplier<Updater> updaterFactory) {
+        this.updatePool = updatePool;
+        this.validatorFactory = validatorFactory;
+        this.updaterFactory = updaterFactory;
+    }
+
+    /**
+     * If true, only the modified fields of the documents are written
+     * using $set and $unset, unless the changes are larger than the
+     * document. Otherwise, documents are replaced.
+     */
+    public void setDiffUpdates(boolean b) {
+        this.diffUpdates = b;
+    }
+
+    /**
+     * Sets the batcher deciding when a batch is committed. By default,
+     * batches have a fixed number of documents.
+     */
+    public void setBatcher(AdaptiveBatcher batcher) {
+        this.batcher = batcher;
+    }
+
     MemoryMonitor<DocCtx> memoryMonitor = null;
 
     public void setResultSizeThresholds(int maxResultSetSizeB, int warnResultSetSizeB, final QueryExpression forQuery) {
@@ -155,6 +407,7 @@ public class IterateAndUpdate implements DocUpdater {
                                           DBCollection collection,
                                           DBObject query,
                                           EntityMetadata md,
+                                          Updater updater,
                                           Measure measure) {
         if(ctx.isUpdateIfCurrent()) {
             // Retrieve doc versions from the context
@@ -169,6 +422,7 @@ public class IterateAndUpdate implements DocUpdater {
                                                         query,
                                                         concurrentModificationDetection,
                                                         md,
+                                                        updater,
                                                         measure);
         }
     }
@@ -185,16 +439,26 @@ public class IterateAndUpdate implements DocUpdater {
         LOGGER.debug("iterateUpdate: start");
         LOGGER.debug("Computing the result set for {}", query);
         Measure measure=new Measure();
-        BatchUpdate sup=getUpdateProtocol(ctx,collection,query,md,measure);
+        List<DocCtx> resultDocs=new ArrayList<>();
+        CommitPipeline pipeline=null;
+        // Measures of the batches committed in the commit pool
+        List<Measure> commitMeasures=new ArrayList<>();
+        BatchUpdate sup;
+        if(commitPool!=null&&maxInFlightBatches>0) {
+            pipeline=new CommitPipeline(resultDocs);
+            sup=getPipelinedUpdateProtocol(ctx,collection,query,md,commitMeasures);
+        } else {
+            sup=getUpdateProtocol(ctx,collection,query,md,updater,measure);
+        }
         DBCursor cursor = null;
         int docIndex = 0;
         int numMatched = 0;
         int numUpdated =0;
         int numFailed =0;
-        BsonMerge merge = new BsonMerge(md);
+        Workers workers = new Workers(md, new Worker(validator, updater, new BsonMerge(md), measure));
         List<DocCtx> docUpdateAttempts=new ArrayList<>();
-        List<DocCtx> resultDocs=new ArrayList<>();
         ctx.setInputDocuments(resultDocs);
+        boolean completed=false;
         try {
             ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
             measure.begin("collection.find");
@@ -215,106 +479,106 @@ public class IterateAndUpdate implements DocUpdater {
             // The amount of branching needs to be toned down, and low level state fiddling needs to be better abstracted
             // so it can be expressed in fewer places.
             while (cursor.hasNext()) {
-                DBObject document = cursor.next();
-                numMatched++;
-                boolean hasErrors = false;
-                LOGGER.debug("Retrieved doc {}", docIndex);
-                measure.begin("ctx.addDocument");
-                DocTranslator.TranslatedDoc translatedDoc=translator.toJson(document);
-                DocCtx doc=new DocCtx(translatedDoc.doc,translatedDoc.rmd);
-                doc.startModifications();
-                measure.end("ctx.addDocument");
-                // From now on: doc contains the working copy, and doc.originalDoc contains the original copy
-                if (updateDoc(md,doc,measure)) {
-                    LOGGER.debug("Document {} modified, updating", docIndex);
-                    ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC_VALIDATION, ctx, doc);
-                    LOGGER.debug("Running constraint validations");
-                    measure.begin("validation");
-                    validator.clearErrors();
-                    validator.validateDoc(doc);
-                    measure.end("validation");
-                    List<Error> errors = validator.getErrors();
-                    if (errors != null && !errors.isEmpty()) {
-                        ctx.addErrors(errors);
-                        hasErrors = true;
-                        LOGGER.debug("Doc has errors");
-                    }
-                    errors = validator.getDocErrors().get(doc);
-                    if (errors != null && !errors.isEmpty()) {
-                        doc.addErrors(errors);
-                        hasErrors = true;
-                        LOGGER.debug("Doc has data errors");
-                    }
-                    if (!hasErrors) {
-                        hasErrors=accessCheck(doc,measure);
-                    }
-                    if (!hasErrors) {
-                        try {
-                            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, doc);
-                            DocTranslator.TranslatedBsonDoc updatedObject=translate(md,doc,document,merge,measure);
-
-                            sup.addDoc(updatedObject.doc);
-                            docUpdateAttempts.add(doc);
-                            // update in batches
-                            if (docUpdateAttempts.size()-batchStartIndex>= batchSize) {
-                                preCommit();
-                                measure.begin("bulkUpdate");
-                                BatchUpdate.CommitInfo ci=sup.commit();
-                                measure.end("bulkUpdate");
-                                for(Map.Entry<Integer,Error> entry:ci.errors.entrySet()) {
-                                    docUpdateAttempts.get(entry.getKey()+batchStartIndex).addError(entry.getValue());
+                List<DocUpdate> docs=readDocs(cursor,docIndex);
+                prepare(ctx,md,docs,workers);
+                for (DocUpdate u:docs) {
+                    DocCtx doc=u.doc;
+                    numMatched++;
+                    boolean hasErrors = u.hasErrors;
+                    // From now on: doc contains the working copy, and doc.originalDoc contains the original copy
+                    if (u.modified) {
+                        if (!hasErrors) {
+                            try {
+                                if (u.failure != null) {
+                                    throw u.failure;
                                 }
-                                numFailed+=ci.errors.size();
-                                numUpdated+=docUpdateAttempts.size()-batchStartIndex-ci.errors.size()-ci.lostDocs.size();
-                                numMatched-=ci.lostDocs.size();
-                                batchStartIndex=docUpdateAttempts.size();
-                                int di=0;
-                                // Only add the docs that were not lost
-                                for(DocCtx d:docUpdateAttempts) {
-                                    if(!ci.lostDocs.contains(di)) {
-                                        enforceMemoryLimit(d);
-                                        resultDocs.add(d);
+                                sup.addDoc(u.updatedObject.doc, u.mongoUpdate);
+                                docUpdateAttempts.add(doc);
+                                batcher.add(u.mongoUpdate==null?u.updatedObject.doc:u.mongoUpdate);
+                                // update in batches
+                                if (pipeline!=null&&batcher.isFull()) {
+                                    preCommit();
+                                    pipeline.submit(sup,new ArrayList<>(docUpdateAttempts.subList(batchStartIndex,docUpdateAttempts.size())));
+                                    // Next batch goes to a new protocol instance, since the commit runs in another thread
+                                    sup=getPipelinedUpdateProtocol(ctx,collection,query,md,commitMeasures);
+                                    batchStartIndex=docUpdateAttempts.size();
+                                    batcher.reset();
+                                } else if (batcher.isFull()) {
+                                    preCommit();
+                                    measure.begin("bulkUpdate");
+                                    long start=System.nanoTime();
+                                    BatchUpdate.CommitInfo ci=sup.commit();
+                                    batcher.committed(docUpdateAttempts.size()-batchStartIndex,System.nanoTime()-start);
+                                    batcher.reset();
+                                    measure.end("bulkUpdate");
+                                    for(Map.Entry<Integer,Error> entry:ci.errors.entrySet()) {
+                                        docUpdateAttempts.get(entry.getKey()+batchStartIndex).addError(entry.getValue());
+                                    }
+                                    numFailed+=ci.errors.size();
+                                    numUpdated+=docUpdateAttempts.size()-batchStartIndex-ci.errors.size()-ci.lostDocs.size();
+                                    numMatched-=ci.lostDocs.size();
+                                    batchStartIndex=docUpdateAttempts.size();
+                                    int di=0;
+                                    // Only add the docs that were not lost
+                                    for(DocCtx d:docUpdateAttempts) {
+                                        if(!ci.lostDocs.contains(di)) {
+                                            enforceMemoryLimit(d);
+                                            resultDocs.add(d);
+                                        }
+                                        di++;
                                     }
-                                    di++;
                                 }
-                            }
-                            doc.setCRUDOperationPerformed(CRUDOperation.UPDATE);
-                            doc.setUpdatedDocument(doc);
-                        } catch (Error e) {
-                            if (MongoCrudConstants.ERROR_RESULT_SIZE_TOO_LARGE.equals(e.getErrorCode())) {
-                                throw e;
-                            } else {
+                                doc.setCRUDOperationPerformed(CRUDOperation.UPDATE);
+                                doc.setUpdatedDocument(doc);
+                            } catch (Error e) {
+                                if (MongoCrudConstants.ERROR_RESULT_SIZE_TOO_LARGE.equals(e.getErrorCode())) {
+                                    throw e;
+                                } else {
+                                    LOGGER.warn("Update exception for document {}: {}", docIndex, e);
+                                    doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString()));
+                                    hasErrors = true;
+                                }
+                            } catch (Exception e) {
                                 LOGGER.warn("Update exception for document {}: {}", docIndex, e);
                                 doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString()));
                                 hasErrors = true;
                             }
-                        } catch (Exception e) {
-                            LOGGER.warn("Update exception for document {}: {}", docIndex, e);
-                            doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString()));
-                            hasErrors = true;
+                        } else {
+                            numFailed++;
+                            resultDocs.add(doc);
                         }
                     } else {
-                        numFailed++;
+                        LOGGER.debug("Document {} was not modified", docIndex);
                         resultDocs.add(doc);
                     }
-                } else {
-                    LOGGER.debug("Document {} was not modified", docIndex);
-                    resultDocs.add(doc);
-                }
-                if (hasErrors) {
-                    LOGGER.debug("Document {} has errors", docIndex);
-                    doc.setOutputDocument(errorProjector.project(doc, nodeFactory));
-                } else if (projector != null) {
-                    LOGGER.debug("Projecting document {}", docIndex);
-                    doc.setOutputDocument(projector.project(doc, nodeFactory));
+                    if (hasErrors) {
+                        LOGGER.debug("Document {} has errors", docIndex);
+                        doc.setOutputDocument(errorProjector.project(doc, nodeFactory));
+                    } else if (projector != null) {
+                        LOGGER.debug("Projecting document {}", docIndex);
+                        doc.setOutputDocument(projector.project(doc, nodeFactory));
+                    }
+                    docIndex++;
                 }
-                docIndex++;
             }
             measure.end("iteration");
-            // if we have any remaining items to update
-            if (docUpdateAttempts.size() > batchStartIndex) {
+            if (pipeline!=null) {
+                if (docUpdateAttempts.size() > batchStartIndex) {
+                    preCommit();
+                    pipeline.submit(sup,new ArrayList<>(docUpdateAttempts.subList(batchStartIndex,docUpdateAttempts.size())));
+                }
+                measure.begin("bulkUpdate");
+                pipeline.completeAll();
+                measure.end("bulkUpdate");
+                numUpdated+=pipeline.numUpdated;
+                numFailed+=pipeline.numFailed;
+                numMatched-=pipeline.numLost;
+            } else if (docUpdateAttempts.size() > batchStartIndex) {
+                // if we have any remaining items to update
                 preCommit();
+                long start=System.nanoTime();
                 BatchUpdate.CommitInfo ci=sup.commit();
+                batcher.committed(docUpdateAttempts.size()-batchStartIndex,System.nanoTime()-start);
                 for(Map.Entry<Integer,Error> entry:ci.errors.entrySet()) {
                     docUpdateAttempts.get(entry.getKey()+batchStartIndex).addError(entry.getValue());
                 }
@@ -329,8 +593,12 @@ public class IterateAndUpdate implements DocUpdater {
                     }
                     di++;
                 }
-           }
+            }
+            completed=true;
         } finally {
+            if (pipeline!=null&&!completed) {
+                pipeline.abort();
+            }
             if (cursor != null) {
                 cursor.close();
             }
@@ -341,7 +609,136 @@ public class IterateAndUpdate implements DocUpdater {
         response.setNumUpdated(numUpdated);
         response.setNumFailed(numFailed);
         response.setNumMatched(numMatched);
-        METRICS.debug("IterateAndUpdate:\n{}",measure);
+        METRICS.debug("IterateAndUpdate:\n{}\nworkers:\n{}\ncommits:\n{}",measure,workers.getMeasures(),commitMeasures);
+    }
+
+    /**
+     * Returns a protocol for a batch committed in the commit pool, with
+     * its own updater and measure
+     */
+    private BatchUpdate getPipelinedUpdateProtocol(CRUDOperationContext ctx,
+                                                   DBCollection collection,
+                                                   DBObject query,
+                                                   EntityMetadata md,
+                                                   List<Measure> commitMeasures) {
+        Measure commitMeasure=new Measure();
+        commitMeasures.add(commitMeasure);
+        return getUpdateProtocol(ctx,collection,query,md,updaterFactory.get(),commitMeasure);
+    }
+
+    /**
+     * Reads the next documents to update. Without a pool, documents are
+     * updated one by one.
+     */
+    private List<DocUpdate> readDocs(DBCursor cursor, int docIndex) {
+        int n = updatePool == null ? 1 : batcher.getTarget();
+        List<DocUpdate> docs = new ArrayList<>(n);
+        while (docs.size() < n && cursor.hasNext()) {
+            LOGGER.debug("Retrieved doc {}", docIndex + docs.size());
+            docs.add(new DocUpdate(cursor.next(), docIndex + docs.size()));
+        }
+        return docs;
+    }
+
+    /**
+     * Updates, validates and translates the documents. Interceptors are
+     * called in document order from this thread.
+     */
+    private void prepare(CRUDOperationContext ctx, EntityMetadata md, List<DocUpdate> docs, Workers workers) {
+        runStage(docs, u -> {
+            Worker w = workers.get();
+            w.measure.begin("ctx.addDocument");
+            DocTranslator.TranslatedDoc translatedDoc = translator.toJson(u.document);
+            u.doc = new DocCtx(translatedDoc.doc, translatedDoc.rmd);
+            u.doc.startModifications();
+            w.measure.end("ctx.addDocument");
+            u.modified = updateDoc(md, u.doc, w.updater, w.measure);
+        });
+        List<DocUpdate> modified = new ArrayList<>(docs.size());
+        for (DocUpdate u : docs) {
+            if (u.modified) {
+                LOGGER.debug("Document {} modified, updating", u.docIndex);
+                ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC_VALIDATION, ctx, u.doc);
+                modified.add(u);
+            }
+        }
+        LOGGER.debug("Running constraint validations");
+        runStage(modified, u -> {
+            Worker w = workers.get();
+            w.measure.begin("validation");
+            w.validator.clearErrors();
+            w.validator.validateDoc(u.doc);
+            w.measure.end("validation");
+            List<Error> errors = w.validator.getErrors();
+            if (errors != null && !errors.isEmpty()) {
+                u.ctxErrors = new ArrayList<>(errors);
+                u.hasErrors = true;
+                LOGGER.debug("Doc has errors");
+            }
+            errors = w.validator.getDocErrors().get(u.doc);
+            if (errors != null && !errors.isEmpty()) {
+                u.doc.addErrors(errors);
+                u.hasErrors = true;
+                LOGGER.debug("Doc has data errors");
+            }
+            if (!u.hasErrors) {
+                u.hasErrors = accessCheck(u.doc, w.measure);
+            }
+        });
+        List<DocUpdate> valid = new ArrayList<>(modified.size());
+        for (DocUpdate u : modified) {
+            if (u.ctxErrors != null) {
+                ctx.addErrors(u.ctxErrors);
+            }
+            if (!u.hasErrors) {
+                try {
+                    ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, u.doc);
+                    valid.add(u);
+                } catch (RuntimeException e) {
+                    u.failure = e;
+                }
+            }
+        }
+        runStage(valid, u -> {
+            Worker w = workers.get();
+            try {
+                u.updatedObject = translate(md, u.doc, u.document, w.merge, w.measure);
+                if (diffUpdates) {
+                    w.measure.begin("diff");
+                    u.mongoUpdate = DocDiff.getUpdate(w.merge, u.document, u.updatedObject.doc);
+                    w.measure.end("diff");
+                }
+            } catch (RuntimeException e) {
+                u.failure = e;
+            }
+        });
+    }
+
+    /**
+     * Runs the stage for all documents, on the update pool if there is
+     * one. The first unexpected failure, in document order, is rethrown.
+     */
+    private void runStage(List<DocUpdate> docs, Consumer<DocUpdate> stage) {
+        if (updatePool == null || docs.size() < 2) {
+            for (DocUpdate u : docs) {
+                runStage(u, stage);
+            }
+        } else {
+            updatePool.invoke(new StageTask(docs, 0, docs.size(), stage));
+        }
+        for (DocUpdate u : docs) {
+            if (u.fatal != null) {
+                throw u.fatal;
+            }
+        }
+    }
+
+    private static void runStage(DocUpdate u, Consumer<DocUpdate> stage) {
+        try {
+            stage.accept(u);
+        } catch (RuntimeException e) {
+            u.fatal = e;
+        }
     }
 
     private void enforceMemoryLimit(DocCtx doc) {
@@ -360,6 +757,7 @@ public class IterateAndUpdate implements DocUpdater {
 
     private boolean updateDoc(EntityMetadata md,
                               JsonDoc doc,
+                              Updater updater,
                               Measure measure) {
         if (updater.update(doc, md.getFieldTreeRoot(), Path.EMPTY)) {
             // Remove any nulls from the document
@@ -19,6 +19,7 @@
 package com.redhat.lightblue.mongo.crud;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.NullNode;
@@ -61,6 +62,8 @@ import com.redhat.lightblue.extensions.valuegenerator.ValueGeneratorSupport;
 import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Hook;
+import com.redhat.lightblue.metadata.Hooks;
 import com.redhat.lightblue.metadata.EntitySchema;
 import com.redhat.lightblue.metadata.Field;
 import com.redhat.lightblue.metadata.FieldCursor;
@@ -74,7 +77,10 @@ import com.redhat.lightblue.metadata.MetadataListener;
 import com.redhat.lightblue.metadata.SimpleField;
 import com.redhat.lightblue.metadata.types.StringType;
 import com.redhat.lightblue.mongo.common.DBResolver;
+import com.redhat.lightblue.mongo.common.DaemonThreadFactory;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
+import com.redhat.lightblue.mongo.common.Warmup;
+import com.redhat.lightblue.mongo.common.WarmupRegistry;
 import com.redhat.lightblue.mongo.config.MongoConfiguration;
 import com.redhat.lightblue.mongo.metadata.MongoMetadataConstants;
 import com.redhat.lightblue.query.FieldProjection;
@@ -87,6 +93,7 @@ import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.Path;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -95,12 +102,20 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class MongoCRUDController implements CRUDController, MetadataListener, ExtensionSupport, ExplainQuerySupport {
+public class MongoCRUDController implements CRUDController, MetadataListener, ExtensionSupport, ExplainQuerySupport, WarmupRegistry {
 
     public static final String ID_STR = "_id";
 
@@ -128,6 +143,14 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
      */
     public static final String PROP_FINDER = "MongoCRUDController:finder";
 
+    /**
+     * Name of the property for the operation context that keeps the
+     * continuation token of a seek paged find. The token points to the
+     * last document streamed so far, and is passed as the
+     * continuationToken execution option to retrieve the next page.
+     */
+    public static final String PROP_CONTINUATION_TOKEN = "MongoCRUDController:continuationToken";
+
     public static final String OP_INSERT = "insert";
     public static final String OP_SAVE = "save";
     public static final String OP_FIND = "find";
@@ -143,10 +166,36 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
     private final ControllerConfiguration controllerCfg;
 
     public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final int DEFAULT_INGEST_CHUNK_SIZE = 1000;
+    public static final int DEFAULT_WARMUP_PARALLELISM = 4;
+    public static final int DEFAULT_WARMUP_TIMEOUT_MS = 60000;
     private final int batchSize;
     private final ConcurrentModificationDetectionCfg concurrentModificationDetection;
 
     private final IndexManagementCfg indexManagementCfg;
+    private final StreamPrefetchCfg streamPrefetchCfg;
+    private final boolean rawBsonFind;
+    private final boolean facetCount;
+    private final QueryPlanCache planCache;
+    private final boolean updatePushdown;
+    private final int updatePipelineDepth;
+    private ExecutorService updateCommitPool;
+    private final int updateParallelism;
+    private final boolean diffUpdates;
+    private final BatchSizeCfg batchSizeCfg;
+    private ForkJoinPool updatePool;
+    private final boolean savePipelining;
+    private ExecutorService savePrefetchPool;
+    private final boolean lightweightSaveResult;
+    private final int translationParallelism;
+    private final boolean singleRoundTripUpsert;
+    private final int ingestChunkSize;
+    private final boolean deleteByIdSet;
+    private final boolean deleteHookFieldsOnly;
+    private final boolean deleteHookBatching;
+    private ExecutorService translationPool;
+    private final List<Warmup> warmups = new CopyOnWriteArrayList<>();
+    private boolean warmupStarted = false;
 
     public MongoCRUDController(ControllerConfiguration controllerCfg, DBResolver dbResolver) {
         this.dbResolver = dbResolver;
@@ -154,6 +203,138 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         this.batchSize=getIntOption("updateBatchSize",DEFAULT_BATCH_SIZE);
         this.indexManagementCfg = new IndexManagementCfg(controllerCfg);
         this.concurrentModificationDetection=new ConcurrentModificationDetectionCfg(controllerCfg);
+        this.streamPrefetchCfg=new StreamPrefetchCfg(controllerCfg);
+        this.rawBsonFind=getBooleanOption("rawBsonFind",false);
+        this.facetCount=getBooleanOption("facetCount",false);
+        this.planCache=new QueryPlanCache(getIntOption("planCacheSize",0));
+        this.updatePushdown=getBooleanOption("updatePushdown",false);
+        this.updatePipelineDepth=getIntOption("updatePipelineDepth",0);
+        this.updateParallelism=getIntOption("updateParallelism",0);
+        this.diffUpdates=getBooleanOption("diffUpdates",false);
+        this.batchSizeCfg=new BatchSizeCfg(controllerCfg);
+        this.savePipelining=getBooleanOption("savePipelining",false);
+        this.lightweightSaveResult=getBooleanOption("lightweightSaveResult",false);
+        this.translationParallelism=getIntOption("translationParallelism",0);
+        this.singleRoundTripUpsert=getBooleanOption("singleRoundTripUpsert",false);
+        this.ingestChunkSize=Math.max(getIntOption("ingestChunkSize",DEFAULT_INGEST_CHUNK_SIZE),1);
+        this.deleteByIdSet=getBooleanOption("deleteByIdSet",false);
+        this.deleteHookFieldsOnly=getBooleanOption("deleteHookFieldsOnly",false);
+        this.deleteHookBatching=getBooleanOption("deleteHookBatching",false);
+    }
+
+    /**
+     * If the warmup option is set, opens the clients of all
+     * datasources, and initializes the locking collections in the
+     * background. Each datasource is pinged warmupConnections times in
+     * parallel, so that many connections are opened. Called once the
+     * controller is constructed. The warm-up is started only once.
+     */
+    public synchronized void startWarmup() {
+        if(warmupStarted||!getBooleanOption("warmup",false)) {
+            return;
+        }
+        warmupStarted=true;
+        int parallelism=getIntOption("warmupParallelism",DEFAULT_WARMUP_PARALLELISM);
+        long budgetMsecs=getIntOption("warmupTimeoutMs",DEFAULT_WARMUP_TIMEOUT_MS);
+        int numConnections=Math.max(getIntOption("warmupConnections",1),1);
+        Warmup warmup=new Warmup("mongo");
+        for(MongoConfiguration config:dbResolver.getConfigurations()) {
+            for(int i=0;i<numConnections;i++) {
+                warmup.add("datasource:"+config.getDatabase()+"#"+i,()->{
+                        DB db=dbResolver.get(new MongoDataStore(config.getDatabase(),null,null));
+                        db.command(new BasicDBObject("ping",1));
+                    });
+            }
+        }
+        MongoLockingSupport locking=new MongoLockingSupport(this);
+        for(String domain:locking.getLockingDomains()) {
+            warmup.add("locking:"+domain,()->locking.getLockingInstance(domain));
+        }
+        addWarmup(warmup);
+        warmup.start(parallelism,budgetMsecs);
+    }
+
+    /**
+     * Registers a warm-up. checkHealth reports the controller
+     * unhealthy until all registered warm-ups are finished.
+     */
+    @Override
+    public void addWarmup(Warmup warmup) {
+        warmups.add(warmup);
+    }
+
+    /**
+     * Creates the sequence collections used by the entity
+     */
+    @Override
+    public void warmupEntity(EntityMetadata md) {
+        if(md.getDataStore() instanceof MongoDataStore) {
+            new MongoSequenceSupport(this).initCollections(md);
+        }
+    }
+
+    /**
+     * Returns the pool running document updates in parallel
+     */
+    private synchronized ForkJoinPool getUpdatePool() {
+        if(updatePool==null) {
+            updatePool=new ForkJoinPool(updateParallelism);
+        }
+        return updatePool;
+    }
+
+    /**
+     * Returns the pool committing update batches in the background
+     */
+    private synchronized ExecutorService getUpdateCommitPool() {
+        if(updateCommitPool==null) {
+            updateCommitPool=Executors.newCachedThreadPool(new DaemonThreadFactory("update-commit"));
+        }
+        return updateCommitPool;
+    }
+
+    /**
+     * Returns the pool retrieving existing documents of save batches in the background
+     */
+    private synchronized ExecutorService getSavePrefetchPool() {
+        if(savePrefetchPool==null) {
+            savePrefetchPool=Executors.newCachedThreadPool(new DaemonThreadFactory("save-prefetch"));
+        }
+        return savePrefetchPool;
+    }
+
+    /**
+     * Returns the pool translating large insert and save requests to bson
+     */
+    private synchronized ExecutorService getTranslationPool() {
+        if(translationPool==null) {
+            translationPool=Executors.newFixedThreadPool(translationParallelism, new DaemonThreadFactory("bson-translator"));
+        }
+        return translationPool;
+    }
+
+    /**
+     * Shuts down the thread pools of the controller. Pools are
+     * recreated if the controller is used again.
+     */
+    public synchronized void shutdown() {
+        streamPrefetchCfg.shutdown();
+        if(updatePool!=null) {
+            updatePool.shutdownNow();
+            updatePool=null;
+        }
+        if(updateCommitPool!=null) {
+            updateCommitPool.shutdownNow();
+            updateCommitPool=null;
+        }
+        if(savePrefetchPool!=null) {
+            savePrefetchPool.shutdownNow();
+            savePrefetchPool=null;
+        }
+        if(translationPool!=null) {
+            translationPool.shutdownNow();
+            translationPool=null;
+        }
     }
 
     private String getOption(String optionName,String defaultValue) {
@@ -190,6 +371,10 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         return dbResolver;
     }
 
+    public QueryPlanCache getPlanCache() {
+        return planCache;
+    }
+
     public int getBatchSize() {
         return batchSize;
     }
@@ -224,6 +409,121 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         return response;
     }
 
+    /**
+     * Inserts newline delimited JSON documents read from the input
+     * stream. See {@link #ingest(CRUDOperationContext,Iterator,Consumer)}.
+     */
+    public IngestResult ingest(CRUDOperationContext ctx,
+                               InputStream ndjson,
+                               Consumer<IngestResult.Chunk> listener) throws IOException {
+        try (MappingIterator<JsonNode> nodes = new ObjectMapper().readerFor(JsonNode.class).readValues(ndjson)) {
+            return ingest(ctx, new Iterator<JsonDoc>() {
+                @Override
+                public boolean hasNext() {
+                    return nodes.hasNext();
+                }
+
+                @Override
+                public JsonDoc next() {
+                    return new JsonDoc(nodes.next());
+                }
+            }, listener);
+        }
+    }
+
+    /**
+     * Inserts the documents in chunks of ingestChunkSize
+     * documents. The insert interceptors are called for each chunk,
+     * then the chunk is validated, translated and inserted, its
+     * result is passed to the listener, and then it is discarded, so
+     * memory use does not depend on the number of documents. The hooks
+     * queued for a chunk are called after the chunk is written.
+     * Documents without objectType are assumed to be of the context
+     * entity. Ingestion stops at the first error that is not a
+     * document error.
+     *
+     * @param ctx The operation context. Its input documents are replaced by each chunk.
+     * @param docs The documents to insert
+     * @param listener Receives the result of each chunk, can be null
+     */
+    public IngestResult ingest(CRUDOperationContext ctx,
+                               Iterator<JsonDoc> docs,
+                               Consumer<IngestResult.Chunk> listener) {
+        LOGGER.debug("ingest() start");
+        IngestResult result = new IngestResult();
+        Error.push("mongo:ingest");
+        try {
+            EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
+            ConstraintValidator validator = ctx.getFactory().getConstraintValidator(md);
+            long startIndex = 0;
+            while (result.getError() == null && docs.hasNext()) {
+                List<DocCtx> chunk = new ArrayList<>(ingestChunkSize);
+                while (chunk.size() < ingestChunkSize && docs.hasNext()) {
+                    JsonDoc doc = docs.next();
+                    if (doc.get(DocTranslator.OBJECT_TYPE) == null) {
+                        doc.modify(DocTranslator.OBJECT_TYPE, ctx.getFactory().getNodeFactory().textNode(md.getName()), false);
+                    }
+                    chunk.add(new DocCtx(doc));
+                }
+                int numErrors = ctx.getErrors() == null ? 0 : ctx.getErrors().size();
+                IngestResult.Chunk chunkResult = ingestChunk(ctx, validator, chunk, startIndex);
+                if (ctx.getErrors() != null && ctx.getErrors().size() > numErrors) {
+                    result.setError(ctx.getErrors().get(numErrors));
+                }
+                result.add(chunkResult);
+                LOGGER.debug("ingest: {} docs read, {} inserted", result.getNumRead(), result.getNumInserted());
+                if (listener != null) {
+                    listener.accept(chunkResult);
+                }
+                startIndex += chunk.size();
+            }
+        } catch (Error e) {
+            LOGGER.error("Error in ingest", e);
+            result.setError(e);
+            ctx.addError(e);
+        } catch (Exception e) {
+            LOGGER.error("Exception in ingest", e);
+            Error x = analyzeException(e, CrudConstants.ERR_CRUD);
+            result.setError(x);
+            ctx.addError(x);
+        } finally {
+            ctx.setInputDocuments(new ArrayList<>());
+            Error.pop();
+        }
+        LOGGER.debug("ingest() end: {} docs read, {} inserted", result.getNumRead(), result.getNumInserted());
+        return result;
+    }
+
+    private IngestResult.Chunk ingestChunk(CRUDOperationContext ctx,
+                                           ConstraintValidator validator,
+                                           List<DocCtx> chunk,
+                                           long startIndex) {
+        ctx.setInputDocuments(chunk);
+        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_INSERT, ctx);
+        for (DocCtx doc : chunk) {
+            validator.clearErrors();
+            validator.validateDoc(doc);
+            List<Error> errors = validator.getErrors();
+            if (errors != null && !errors.isEmpty()) {
+                doc.addErrors(errors);
+            }
+            errors = validator.getDocErrors().get(doc);
+            if (errors != null && !errors.isEmpty()) {
+                doc.addErrors(errors);
+            }
+        }
+        int n = saveOrInsert(ctx, false, null, OP_INSERT);
+        ctx.getHookManager().callQueuedHooks();
+        Map<Long, List<Error>> errors = new HashMap<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            DocCtx doc = chunk.get(i);
+            if (doc.hasErrors()) {
+                errors.put(startIndex + i, new ArrayList<>(doc.getErrors()));
+            }
+        }
+        return new IngestResult.Chunk(startIndex, chunk.size(), n, errors);
+    }
+
     private int saveOrInsert(CRUDOperationContext ctx,
                              boolean upsert,
                              Projection projection,
@@ -244,10 +544,18 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                     ctx.getCallerRoles());
             LOGGER.debug("saveOrInsert: Translating docs");
             EntityMetadata md = ctx.getEntityMetadata(ctx.getEntityName());
-            DocTranslator.TranslatedBsonDoc[] dbObjects = translator.toBson(documents);
+            DocTranslator.TranslatedBsonDoc[] dbObjects = null;
+            DocTranslator.ParallelBsonTranslation translation = null;
+            if (translationParallelism > 0 && documents.size() > batchSize) {
+                // Translate in the background, and start writing as soon as the first batch is translated
+                LOGGER.debug("saveOrInsert: translating {} docs in parallel", documents.size());
+                translation = translator.toBson(documents, getTranslationPool(), batchSize);
+            } else {
+                dbObjects = translator.toBson(documents);
+            }
             // dbObjects[i] is the translation of documents.get(i)
-            if (dbObjects != null) {
-                LOGGER.debug("saveOrInsert: {} docs translated to bson", dbObjects.length);
+            if (dbObjects != null || translation != null) {
+                LOGGER.debug("saveOrInsert: {} docs to bson", documents.size());
 
                 MongoDataStore store = (MongoDataStore) md.getDataStore();
                 DB db = dbResolver.get(store);
@@ -262,27 +570,70 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                 } else {
                     projector = null;
                 }
-                DocSaver saver = new BasicDocSaver(translator, roleEval, md, MongoExecutionOptions.
+                BasicDocSaver saver = new BasicDocSaver(translator, roleEval, md, MongoExecutionOptions.
                                                    getWriteConcern(ctx.getExecutionOptions()), batchSize,concurrentModificationDetection);
+                saver.setBatcher(batchSizeCfg.getBatcher(md.getName(), operation, batchSize));
+                if(savePipelining) {
+                    saver.setPrefetchPool(getSavePrefetchPool());
+                }
+                saver.setSingleRoundTripUpsert(singleRoundTripUpsert);
                 ctx.setProperty(PROP_SAVER, saver);
 
-                saver.saveDocs(ctx,
-                        operation.equals(OP_INSERT) ? DocSaver.Op.insert : DocSaver.Op.save,
-                        upsert,
-                        collection,
-                        dbObjects,
-                        documents.toArray(new DocCtx[documents.size()]));
+                DocSaver.Op op = operation.equals(OP_INSERT) ? DocSaver.Op.insert : DocSaver.Op.save;
+                if (translation != null) {
+                    try {
+                        saver.saveDocs(ctx, op, upsert, collection, translation::get,
+                                       documents.toArray(new DocCtx[documents.size()]));
+                    } finally {
+                        translation.cancel();
+                    }
+                    dbObjects = translation.getAll();
+                } else {
+                    saver.saveDocs(ctx,
+                                   op,
+                                   upsert,
+                                   collection,
+                                   dbObjects,
+                                   documents.toArray(new DocCtx[documents.size()]));
+                }
 
+                // Hooks need the full updated document. If there are none, only
+                // the fields required by the projection are translated back
+                boolean lightweight = lightweightSaveResult && !hasSaveHooks(ctx, operation);
+                Set<String> resultFields = null;
+                if (lightweight && projector != null) {
+                    resultFields = getResultFields(md, combinedProjection);
+                    LOGGER.debug("saveOrInsert: translating result fields {}", resultFields);
+                }
                 for (int docIndex = 0; docIndex < dbObjects.length; docIndex++) {
                     DocCtx inputDoc = documents.get(docIndex);
-                    DocTranslator.TranslatedDoc jsonDoc = translator.toJson(dbObjects[docIndex].doc);
-                    LOGGER.debug("Translated doc: {}", jsonDoc.doc);
-                    inputDoc.setUpdatedDocument(jsonDoc.doc);
-                    inputDoc.setResultMetadata(jsonDoc.rmd);
-                    if (projector != null) {
-                        inputDoc.setOutputDocument(projector.project(jsonDoc.doc, ctx.getFactory().getNodeFactory()));
+                    if (lightweight) {
+                        DBObject writtenDoc = dbObjects[docIndex].doc;
+                        if (projector == null) {
+                            inputDoc.setResultMetadata(DocTranslator.getDocMetadata(writtenDoc));
+                            inputDoc.setOutputDocument(new JsonDoc(new ObjectNode(ctx.getFactory().getNodeFactory())));
+                        } else {
+                            BasicDBObject resultDoc = new BasicDBObject();
+                            for (String field : resultFields) {
+                                Object value = writtenDoc.get(field);
+                                if (value != null) {
+                                    resultDoc.put(field, value);
+                                }
+                            }
+                            DocTranslator.TranslatedDoc jsonDoc = translator.toJson(resultDoc);
+                            inputDoc.setResultMetadata(jsonDoc.rmd);
+                            inputDoc.setOutputDocument(projector.project(jsonDoc.doc, ctx.getFactory().getNodeFactory()));
+                        }
                     } else {
-                        inputDoc.setOutputDocument(new JsonDoc(new ObjectNode(ctx.getFactory().getNodeFactory())));
+                        DocTranslator.TranslatedDoc jsonDoc = translator.toJson(dbObjects[docIndex].doc);
+                        LOGGER.debug("Translated doc: {}", jsonDoc.doc);
+                        inputDoc.setUpdatedDocument(jsonDoc.doc);
+                        inputDoc.setResultMetadata(jsonDoc.rmd);
+                        if (projector != null) {
+                            inputDoc.setOutputDocument(projector.project(jsonDoc.doc, ctx.getFactory().getNodeFactory()));
+                        } else {
+                            inputDoc.setOutputDocument(new JsonDoc(new ObjectNode(ctx.getFactory().getNodeFactory())));
+                        }
                     }
                     LOGGER.debug("projected doc: {}", inputDoc.getOutputDocument());
                     if (!inputDoc.hasErrors()) {
@@ -305,6 +656,30 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         return ret;
     }
 
+    /**
+     * Returns true if there are hooks for the documents written by an insert or save
+     */
+    private static boolean hasSaveHooks(CRUDOperationContext ctx, String operation) {
+        return ctx.getHookManager().hasHooks(ctx, CRUDOperation.INSERT)
+                || (OP_SAVE.equals(operation) && ctx.getHookManager().hasHooks(ctx, CRUDOperation.UPDATE));
+    }
+
+    /**
+     * Returns the top level db fields needed to evaluate the projection
+     * on a written document, including the identities, objectType and
+     * the hidden fields
+     */
+    private Set<String> getResultFields(EntityMetadata md, Projection projection) {
+        Set<String> fields = new HashSet<>();
+        for (Path p : ExpressionTranslator.getRequiredFields(md, getProjectionFields(projection, md), null, null)) {
+            fields.add(ExpressionTranslator.translatePath(p.prefix(1)));
+        }
+        fields.add(ID_STR);
+        fields.add(DocTranslator.OBJECT_TYPE_STR);
+        fields.add(ExpressionTranslator.translatePath(DocTranslator.HIDDEN_SUB_PATH));
+        return fields;
+    }
+
     @Override
     public CRUDUpdateResponse update(CRUDOperationContext ctx,
                                      QueryExpression query,
@@ -324,8 +699,7 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
             if (md.getAccess().getUpdate().hasAccess(ctx.getCallerRoles())) {
                 ConstraintValidator validator = ctx.getFactory().getConstraintValidator(md);
                 LOGGER.debug("Translating query {}", query);
-                DBObject mongoQuery = xtranslator.translate(md,
-                                                            ExpressionTranslator.appendObjectType(query,ctx.getEntityName()));
+                DBObject mongoQuery = xtranslator.translate(md, ExpressionTranslator.appendObjectType(query,ctx.getEntityName()));
                 LOGGER.debug("Translated query {}", mongoQuery);
                 FieldAccessRoleEvaluator roleEval = new FieldAccessRoleEvaluator(md, ctx.getCallerRoles());
 
@@ -346,20 +720,40 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                     errorProjector = projector;
                 }
 
-                // If there are any constraints for updated fields, or if we're updating arrays, we have to use iterate-update
-                Updater updater = Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update);
-
-                IterateAndUpdate docUpdater = new IterateAndUpdate(ctx.getFactory().getNodeFactory(), validator, roleEval, translator, updater,
-                                                             projector, errorProjector,
-                                                             MongoExecutionOptions.getWriteConcern(ctx.getExecutionOptions()),
-                                                             batchSize,
-                                                             concurrentModificationDetection);
-                docUpdater.setResultSizeThresholds(ctx.getFactory().getMaxResultSetSizeForWritesB(), ctx.getFactory().getWarnResultSetSizeB(), query);
-                ctx.setProperty(PROP_UPDATER, docUpdater);
-                docUpdater.update(ctx, coll, md, response, mongoQuery);
-                LOGGER.debug("ctx.inputDocuments size after update, before hooks: "+docUpdater.getDataSizeB()+"B");
-                ctx.getHookManager().setQueuedHooksSizeThresholds(ctx.getFactory().getMaxResultSetSizeForWritesB(), ctx.getFactory().getWarnResultSetSizeB(), query, docUpdater.getDataSizeB());
-                ctx.getHookManager().queueHooks(ctx);
+                DBObject pushdownUpdate = null;
+                if (updatePushdown && projector == null && !ctx.isUpdateIfCurrent()) {
+                    pushdownUpdate = PushdownUpdater.getPushdownUpdate(xtranslator, md, update, ctx.getCallerRoles());
+                }
+                if (pushdownUpdate != null) {
+                    LOGGER.debug("Running update on the server: {}", pushdownUpdate);
+                    DocUpdater docUpdater = new PushdownUpdater(pushdownUpdate, MongoExecutionOptions.getWriteConcern(ctx.getExecutionOptions()));
+                    ctx.setProperty(PROP_UPDATER, docUpdater);
+                    docUpdater.update(ctx, coll, md, response, mongoQuery);
+                } else {
+                    // If there are any constraints for updated fields, or if we're updating arrays, we have to use iterate-update
+                    Updater updater = Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update);
+
+                    IterateAndUpdate docUpdater = new IterateAndUpdate(ctx.getFactory().getNodeFactory(), validator, roleEval, translator, updater,
+                                                                       projector, errorProjector,
+                                                                       MongoExecutionOptions.getWriteConcern(ctx.getExecutionOptions()),
+                                                                       batchSize,
+                                                                       concurrentModificationDetection);
+                    docUpdater.setDiffUpdates(diffUpdates);
+                    docUpdater.setBatcher(batchSizeCfg.getBatcher(md.getName(), OP_UPDATE, batchSize));
+                    Supplier<Updater> updaterFactory = () -> Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update);
+                    if (updateParallelism > 0) {
+                        docUpdater.setParallelism(getUpdatePool(), () -> ctx.getFactory().getConstraintValidator(md), updaterFactory);
+                    }
+                    if (updatePipelineDepth > 0) {
+                        docUpdater.setPipelining(getUpdateCommitPool(), updatePipelineDepth, updaterFactory);
+                    }
+                    docUpdater.setResultSizeThresholds(ctx.getFactory().getMaxResultSetSizeForWritesB(), ctx.getFactory().getWarnResultSetSizeB(), query);
+                    ctx.setProperty(PROP_UPDATER, docUpdater);
+                    docUpdater.update(ctx, coll, md, response, mongoQuery);
+                    LOGGER.debug("ctx.inputDocuments size after update, before hooks: "+docUpdater.getDataSizeB()+"B");
+                    ctx.getHookManager().setQueuedHooksSizeThresholds(ctx.getFactory().getMaxResultSetSizeForWritesB(), ctx.getFactory().getWarnResultSetSizeB(), query, docUpdater.getDataSizeB());
+                    ctx.getHookManager().queueHooks(ctx);
+                }
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "update:" + ctx.getEntityName()));
             }
@@ -396,11 +790,19 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                 LOGGER.debug("Translated query {}", mongoQuery);
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
-                DocDeleter deleter = new BasicDocDeleter(translator, MongoExecutionOptions.
+                BasicDocDeleter deleter = new BasicDocDeleter(translator, MongoExecutionOptions.
                         getWriteConcern(ctx.getExecutionOptions()), batchSize);
+                deleter.setBatcher(batchSizeCfg.getBatcher(md.getName(), OP_DELETE, batchSize));
+                deleter.setDeleteByIdSet(deleteByIdSet);
+                if (deleteHookFieldsOnly) {
+                    deleter.setFields(getDeleteHookFields(xtranslator, md));
+                }
+                deleter.setHookBatching(deleteHookBatching);
                 ctx.setProperty(PROP_DELETER, deleter);
                 deleter.delete(ctx, coll, mongoQuery, response);
-                ctx.getHookManager().queueHooks(ctx);
+                if (!deleter.isHookBatching()) {
+                    ctx.getHookManager().queueHooks(ctx);
+                }
             } else {
                 ctx.addError(Error.get(MongoCrudConstants.ERR_NO_ACCESS, "delete:" + ctx.getEntityName()));
             }
@@ -417,6 +819,39 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         return response;
     }
 
+    /**
+     * Returns the db projection containing the fields required by the
+     * projections of the delete hooks of the entity, or null if a hook
+     * needs the whole document. The _id, objectType and the identity
+     * fields are always included, they are needed to build the hook
+     * documents.
+     */
+    DBObject getDeleteHookFields(ExpressionTranslator xtranslator, EntityMetadata md) {
+        List<Projection> projections = new ArrayList<>();
+        Hooks hooks = md.getEntityInfo().getHooks();
+        if (hooks != null) {
+            for (Hook hook : hooks.getHooks()) {
+                if (hook.isDelete()) {
+                    if (hook.getProjection() == null) {
+                        return null;
+                    }
+                    projections.add(hook.getProjection());
+                }
+            }
+        }
+        DBObject fields = xtranslator.translateProjection(md, getProjectionFields(new ProjectionList(projections), md), null, null);
+        fields.put(ID_STR, 1);
+        fields.put(DocTranslator.OBJECT_TYPE_STR, 1);
+        Field[] identityFields = md.getEntitySchema().getIdentityFields();
+        if (identityFields != null) {
+            for (Field f : identityFields) {
+                fields.put(ExpressionTranslator.translatePath(f.getFullPath()), 1);
+            }
+        }
+        LOGGER.debug("Delete hook fields: {}", fields);
+        return fields;
+    }
+
     protected long getMaxQueryTimeMS(MongoConfiguration cfg, CRUDOperationContext ctx) {
         // pick the default, even if we don't have a configuration coming in
         long output = MongoConfiguration.DEFAULT_MAX_QUERY_TIME_MS;
@@ -473,13 +908,19 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                 } else {
                     mongoSort = null;
                 }
-                DBObject mongoProjection = xtranslator.translateProjection(md, getProjectionFields(projection, md), query, sort);
+                DBObject mongoProjection = planCache.getProjection(md, projection, query, sort,
+                                                                   () -> xtranslator.translateProjection(md, getProjectionFields(projection, md), query, sort));
                 LOGGER.debug("Translated projection {}", mongoProjection);
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
                 LOGGER.debug("Retrieve db collection:" + coll);
-                DocFinder finder = new BasicDocFinder(translator, MongoExecutionOptions.
+                BasicDocFinder finder = new BasicDocFinder(translator, MongoExecutionOptions.
                         getReadPreference(ctx.getExecutionOptions()));
+                finder.setSeekPaging(MongoExecutionOptions.isSeekPaging(ctx.getExecutionOptions()),
+                                     MongoExecutionOptions.getContinuationToken(ctx.getExecutionOptions()));
+                finder.setPrefetch(streamPrefetchCfg);
+                finder.setRawBson(rawBsonFind);
+                finder.setFacetCount(facetCount);
                 MongoConfiguration cfg = dbResolver.getConfiguration((MongoDataStore) md.getDataStore());
                 if (cfg != null) {
                     finder.setMaxResultSetSize(cfg.getMaxResultSetSize());
@@ -488,8 +929,9 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                 ctx.setProperty(PROP_FINDER, finder);
                 response.setSize(finder.find(ctx, coll, mongoQuery, mongoProjection, mongoSort, from, to));
                 // Project results
-                Projector projector = Projector.getInstance(projection == null ? EMPTY_PROJECTION
-                        : Projection.add(projection, roleEval.getExcludedFields(FieldAccessRoleEvaluator.Operation.find)), md);
+                Projection findProjection = projection == null ? EMPTY_PROJECTION
+                        : Projection.add(projection, roleEval.getExcludedFields(FieldAccessRoleEvaluator.Operation.find));
+                Projector projector = Projector.getInstance(findProjection, md);
                 ctx.setDocumentStream(DocumentStream.map(ctx.getDocumentStream(),d->{
                             ctx.measure.begin("projectFound");
                             d.setOutputDocument(projector.project(d, JsonNodeFactory.instance));
@@ -1151,6 +1593,12 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
             dbDetails.putAll(getMongoConfigDetails(config));
             healthDetails.put(config.getDatabase(), dbDetails);
         }
+        for (Warmup warmup : warmups) {
+            if (!warmup.isFinished()) {
+                isHealthy = false;
+            }
+            healthDetails.put("warmup:" + warmup.getName(), warmup.getDetails());
+        }
         return new CRUDHealth(isHealthy, healthDetails);
     }
 
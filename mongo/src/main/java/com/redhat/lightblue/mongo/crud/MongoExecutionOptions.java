@@ -31,6 +31,10 @@ public class MongoExecutionOptions {
     // see https://jewzaam.gitbooks.io/lightblue-specifications/content/language_specification/execution.html
     public static final String OPT_READ_PREFERENCE = "readPreference";
     public static final String OPT_WRITE_CONCERN = "writeConcern";
+    public static final String OPT_PAGING = "paging";
+    public static final String OPT_CONTINUATION_TOKEN = "continuationToken";
+
+    public static final String OPT_PAGING_SEEK = "seek";
 
     public static final String OPT_READ_PREFERENCE_NEAREST = MongoReadPreference.READ_PREFERENCE_NEAREST;
     public static final String OPT_READ_PREFERENCE_PRIMARY = MongoReadPreference.READ_PREFERENCE_PRIMARY;
@@ -79,4 +83,33 @@ public class MongoExecutionOptions {
         return null;
     }
 
+    /**
+     * Returns true if the execution options request keyset (seek)
+     * paging, that is, paging=seek
+     */
+    public static boolean isSeekPaging(ExecutionOptions options) {
+        if (options != null) {
+            String value = options.getOptions().get(OPT_PAGING);
+            return value != null && OPT_PAGING_SEEK.equalsIgnoreCase(value.trim());
+        }
+        return false;
+    }
+
+    /**
+     * Returns the continuation token returned from the previous page
+     * of a seek paged find. Returns null if there is none, meaning
+     * the first page is requested.
+     */
+    public static String getContinuationToken(ExecutionOptions options) {
+        if (options != null) {
+            String value = options.getOptions().get(OPT_CONTINUATION_TOKEN);
+            if (value != null) {
+                value = value.trim();
+                if (value.length() > 0) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
 }
@@ -26,6 +26,7 @@ import java.util.Set;
 import java.util.HashSet;
 import java.util.HashMap;
 import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
 
 import com.mongodb.ReadPreference;
 import org.slf4j.Logger;
@@ -139,6 +140,12 @@ import com.redhat.lightblue.util.Error;
 public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
 
     private static final Logger LOGGER=LoggerFactory.getLogger(MongoSafeUpdateProtocol.class);
+    private static final Logger METRICS=LoggerFactory.getLogger("metrics."+MongoSafeUpdateProtocol.class.getName());
+
+    /**
+     * Concurrent modification retry counters of all updates
+     */
+    public static final ContentionStats CONTENTION_STATS=new ContentionStats();
     
     private static final class BatchDoc {
         Object id;
@@ -214,6 +221,24 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
         batch.add(new BatchDoc(doc));
     }
 
+    /**
+     * Adds a document to the current batch, writing only the changes
+     */
+    @Override
+    public void addDoc(DBObject doc, DBObject update) {
+        if (update == null) {
+            addDoc(doc);
+        } else {
+            DBObject q=writeReplaceQuery(doc);
+            DocVerUtil.cleanupOldDocVer(doc,docVer);
+            DocVerUtil.setDocVer(doc,docVer);
+            update=BatchUpdate.addDocVer(update,doc);
+            LOGGER.debug("updateQuery={} update={}",q,update);
+            bwo.find(q).updateOne(update);
+            batch.add(new BatchDoc(doc));
+        }
+    }
+
     /**
      * Returns the number of queued requests
      */
@@ -242,10 +267,15 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
 
     public void retryConcurrentUpdateErrorsIfNeeded(CommitInfo ci) {
         int nRetries=cfg.getFailureRetryCount();
+        int round=0;
         while(nRetries-->0) {
             // Get the documents with concurrent modification errors
             List<Integer> failedDocs=getFailedDocIndexes(ci);
             if(!failedDocs.isEmpty()) {
+                if(round>0) {
+                    backoff(round);
+                }
+                round++;
                 failedDocs=retryFailedDocs(failedDocs,ci);
             } else {
                 break;
@@ -256,28 +286,74 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
                 LOGGER.error("Retried docs.id in {} {} times, all times failed", failedDocs, cfg.getFailureRetryCount());
             }
         }
-
-
+        if(round>0) {
+            METRICS.debug("Contention: {}",CONTENTION_STATS);
+        }
     }
 
+    /**
+     * Sleeps a random time up to retryBackoffMs*2^(round-1), but not
+     * more than maxRetryBackoffMs, so competing updaters don't retry
+     * in lockstep
+     */
+    private void backoff(int round) {
+        long limit=Math.min(cfg.getMaxRetryBackoffMs(),cfg.getRetryBackoffMs()<<Math.min(round-1,20));
+        if(limit>0) {
+            long delay=ThreadLocalRandom.current().nextLong(limit+1);
+            LOGGER.debug("Retry round {}, waiting {}ms",round,delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 
+    /**
+     * Retries the failed docs. The failed docs are read using a single
+     * query, and the changes are reapplied and written using a single
+     * bulk write.
+     *
+     * @return The indexes of docs that failed again
+     */
     private List<Integer> retryFailedDocs(List<Integer> failedDocs,CommitInfo ci) {
         List<Integer> newFailedDocs=new ArrayList<>(failedDocs.size());
-        for(Integer index:failedDocs) {            
-            BatchDoc doc=batch.get(index);
-            // Read the doc
-            DBObject findQuery=new BasicDBObject("_id",doc.id);
-            if(cfg.isReevaluateQueryForRetry()) {
-                if(query!=null) {
-                    List<DBObject> list=new ArrayList<>(2);
-                    list.add(findQuery);
-                    list.add(query);
-                    findQuery=new BasicDBObject("$and",list);
+        CONTENTION_STATS.roundStarted();
+        Map<Object,Integer> indexes=new HashMap<>();
+        List<Object> ids=new ArrayList<>(failedDocs.size());
+        for(Integer index:failedDocs) {
+            Object id=batch.get(index).id;
+            indexes.put(id,index);
+            ids.add(id);
+            CONTENTION_STATS.retried(collection.getName(),id);
+        }
+        // Read the docs
+        DBObject findQuery=new BasicDBObject("_id",new BasicDBObject("$in",ids));
+        if(cfg.isReevaluateQueryForRetry()) {
+            if(query!=null) {
+                List<DBObject> list=new ArrayList<>(2);
+                list.add(findQuery);
+                list.add(query);
+                findQuery=new BasicDBObject("$and",list);
+            }
+        }
+        Map<Integer,DBObject> updatedDocs=new HashMap<>();
+        try (DBCursor cursor=collection.find(findQuery).setReadPreference(ReadPreference.primary())) {
+            while(cursor.hasNext()) {
+                DBObject doc=cursor.next();
+                Integer index=indexes.get(doc.get("_id"));
+                if(index!=null) {
+                    updatedDocs.put(index,doc);
                 }
             }
-            DBObject updatedDoc=collection.findOne(findQuery);
+        }
+
+        BulkWriteOperation retryBwo=collection.initializeUnorderedBulkOperation();
+        // retried[i] is the batch index of the i'th doc in retryBwo
+        List<Integer> retried=new ArrayList<>(failedDocs.size());
+        for(Integer index:failedDocs) {
+            DBObject updatedDoc=updatedDocs.get(index);
             if(updatedDoc!=null) {
-                // if updatedDoc is null, doc is lost. Error remains
                 DBObject newDoc=reapplyChanges(index,updatedDoc);
                 // Make sure reapplyChanges does not insert references
                 // of objects from the old document into the
@@ -289,25 +365,8 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
                     // because its docVer is not set to our docver, so
                     // this is ok
                     DocVerUtil.setDocVer(newDoc,docVer);
-                    // Using bulkwrite here with one doc to use the
-                    // findAndReplace API, which is lacking in
-                    // DBCollection
-                    BulkWriteOperation nestedBwo=collection.initializeUnorderedBulkOperation();
-                    nestedBwo.find(replaceQuery).replaceOne(newDoc);
-                    try {
-                        if(nestedBwo.execute().getMatchedCount()==1) {
-                            if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("Successfully retried to update a doc: replaceQuery={} newDoc={}", replaceQuery, newDoc);
-                            }
-                            // Successful update
-                            ci.errors.remove(index);
-                        }
-                    } catch(Exception e) {
-                        if (LOGGER.isDebugEnabled()) {
-                            LOGGER.debug("Failed retrying to update a doc: replaceQuery={} newDoc={} error={}", replaceQuery, newDoc, e.toString());
-                        }
-                        newFailedDocs.add(index);
-                    }
+                    retryBwo.find(replaceQuery).replaceOne(newDoc);
+                    retried.add(index);
                 } else {
                     // reapllyChanges removed the doc from the resultset
                     ci.errors.remove(index);
@@ -317,10 +376,45 @@ public abstract class MongoSafeUpdateProtocol implements BatchUpdate {
                 if (LOGGER.isDebugEnabled()) {
                     LOGGER.debug("Removing doc id={} from retry queue, because it does not exist or match anymore", index);
                 }
+                CONTENTION_STATS.lost();
                 ci.errors.remove(index);
                 ci.lostDocs.add(index);
             }
         }
+
+        if(!retried.isEmpty()) {
+            Map<Integer,Error> retryErrors=new HashMap<>();
+            Set<Object> notUpdated=new HashSet<>();
+            try {
+                if(!BatchUpdate.batchUpdate(retryBwo,writeConcern,retried.size(),retryErrors,LOGGER)) {
+                    // Find out which docs are written with our docver
+                    List<Object> writtenIds=new ArrayList<>(retried.size());
+                    for(int i=0;i<retried.size();i++) {
+                        if(!retryErrors.containsKey(i)) {
+                            writtenIds.add(batch.get(retried.get(i)).id);
+                        }
+                    }
+                    notUpdated=BatchUpdate.getFailedUpdates(collection,docVer,writtenIds);
+                }
+            } catch(RuntimeException e) {
+                LOGGER.debug("Failed retrying to update docs {}: {}",retried,e.toString());
+                newFailedDocs.addAll(retried);
+                CONTENTION_STATS.failed(retried.size());
+                return newFailedDocs;
+            }
+            for(int i=0;i<retried.size();i++) {
+                Integer index=retried.get(i);
+                if(retryErrors.containsKey(i)||notUpdated.contains(batch.get(index).id)) {
+                    newFailedDocs.add(index);
+                } else {
+                    // Successful update
+                    ci.errors.remove(index);
+                }
+            }
+            LOGGER.debug("Retried {} docs, {} failed",retried.size(),newFailedDocs.size());
+            CONTENTION_STATS.succeeded(retried.size()-newFailedDocs.size());
+            CONTENTION_STATS.failed(newFailedDocs.size());
+        }
         return newFailedDocs;
     }
 
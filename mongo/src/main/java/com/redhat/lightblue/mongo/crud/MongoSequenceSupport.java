@@ -26,6 +26,9 @@ import org.slf4j.LoggerFactory;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.SimpleField;
 import com.redhat.lightblue.metadata.ValueGenerator;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
 import com.redhat.lightblue.metadata.EntityMetadata;
@@ -112,4 +115,23 @@ public class MongoSequenceSupport implements ValueGeneratorSupport {
         MongoSequenceGenerator gen = new MongoSequenceGenerator(coll);
         return gen.getNextSequenceValue(name, initialValue, increment);
     }
+
+    /**
+     * Initializes the sequence collections used by the entity
+     */
+    public void initCollections(EntityMetadata md) {
+        DB db = controller.getDbResolver().get((MongoDataStore) md.getDataStore());
+        FieldCursor cursor = md.getFieldCursor();
+        while (cursor.next()) {
+            FieldTreeNode node = cursor.getCurrentNode();
+            if (node instanceof SimpleField) {
+                ValueGenerator generator = ((SimpleField) node).getValueGenerator();
+                if (generator != null && generator.getValueGeneratorType() == ValueGenerator.ValueGeneratorType.IntSequence) {
+                    String collection = generator.getProperties().getProperty(PROP_COLLECTION);
+                    LOGGER.debug("Initializing sequence collection {} for {}", collection, md.getName());
+                    new MongoSequenceGenerator(db.getCollection(collection == null ? DEFAULT_COLLECTION_NAME : collection));
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import com.redhat.lightblue.crud.DocCtx;
+
+/**
+ * A cursor stream that reads ahead. A producer task drains the
+ * cursor in batches, and submits the translation of each batch to a
+ * worker pool. The futures of the translated batches are queued in
+ * the order they are read, so the consumer sees the documents in
+ * cursor order, and only waits if the producer or the translation
+ * falls behind. The queue is bounded, so at most queueDepth batches
+ * are read ahead.
+ *
+ * Listeners are called on the consumer thread, as the documents are
+ * returned from next().
+ */
+public class PrefetchingCursorStream extends CursorStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrefetchingCursorStream.class);
+
+    private static final long OFFER_WAIT_MSECS = 100l;
+
+    private static final class Item {
+        final DBObject obj;
+        final DocCtx doc;
+        final int size;
+
+        Item(DBObject obj, DocCtx doc, int size) {
+            this.obj = obj;
+            this.doc = doc;
+            this.size = size;
+        }
+    }
+
+    // Marks the end of the stream. Compared by reference
+    private static final List<Item> END = new ArrayList<>();
+
+    private final ExecutorService workerPool;
+    private final int batchSize;
+    private final BlockingQueue<Future<List<Item>>> queue;
+
+    private volatile boolean closed = false;
+    private List<Item> current;
+    private int currentIndex;
+    private boolean done = false;
+
+    /**
+     * @param cursor The cursor to read from. The cursor is read only by the producer task.
+     * @param translator The translator, shared by the workers
+     * @param producerPool The executor running the producer task
+     * @param workerPool The executor translating the batches
+     * @param queueDepth Max number of batches read ahead
+     * @param batchSize Number of documents in a batch
+     */
+    public PrefetchingCursorStream(DBCursor cursor,
+                                   DocTranslator translator,
+                                   DBObject mongoQuery,
+                                   long executionTime,
+                                   long from,
+                                   long to,
+                                   ExecutorService producerPool,
+                                   ExecutorService workerPool,
+                                   int queueDepth,
+                                   int batchSize) {
+        super(cursor, translator, mongoQuery, executionTime, from, to);
+        this.workerPool = workerPool;
+        this.batchSize = batchSize < 1 ? 1 : batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueDepth < 1 ? 1 : queueDepth);
+        producerPool.submit(this::produce);
+    }
+
+    private void produce() {
+        try {
+            while (!closed && cursor.hasNext()) {
+                List<DBObject> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && cursor.hasNext()) {
+                    batch.add(cursor.next());
+                }
+                LOGGER.debug("Read {} docs, submitting for translation", batch.size());
+                if (!enqueue(workerPool.submit(() -> translate(batch)))) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            if (!closed) {
+                LOGGER.error("Error reading cursor", e);
+                CompletableFuture<List<Item>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                enqueue(failed);
+            }
+        } finally {
+            enqueue(CompletableFuture.completedFuture(END));
+            closeCursor();
+        }
+    }
+
+    private List<Item> translate(List<DBObject> batch) {
+        List<Item> list = new ArrayList<>(batch.size());
+        for (DBObject obj : batch) {
+            DocTranslator.TranslatedDoc d = translator.toJson(obj);
+            list.add(new Item(obj, newDocCtx(d), DocTranslator.size(d)));
+        }
+        return list;
+    }
+
+    /**
+     * Waits until there is room in the queue, or the stream is
+     * closed. Returns false if the stream is closed.
+     */
+    private boolean enqueue(Future<List<Item>> f) {
+        try {
+            while (!closed) {
+                if (queue.offer(f, OFFER_WAIT_MSECS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!done && (current == null || currentIndex >= current.size())) {
+            List<Item> batch = take();
+            if (batch == END) {
+                done = true;
+            } else {
+                current = batch;
+                currentIndex = 0;
+            }
+        }
+        return !done;
+    }
+
+    private List<Item> take() {
+        try {
+            return queue.take().get();
+        } catch (ExecutionException e) {
+            done = true;
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public DocCtx next() {
+        startRetrieval();
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Item item = current.get(currentIndex++);
+        return deliver(item.obj, item.doc, item.size);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Future<List<Item>> f;
+        while ((f = queue.poll()) != null) {
+            f.cancel(false);
+        }
+    }
+}
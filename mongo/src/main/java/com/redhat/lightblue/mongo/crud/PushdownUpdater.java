@@ -0,0 +1,268 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.CRUDUpdateResponse;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.ListDocumentStream;
+import com.redhat.lightblue.metadata.Access;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.Field;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.query.UpdateExpression;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Runs an update as a single updateMany on the server, without
+ * reading the documents. This is only possible if the documents
+ * don't have to be seen to perform the update:
+ * <ul>
+ * <li>the update can be translated to a mongo update ($set, $inc, $unset
+ * on non-array fields)</li>
+ * <li>the updated fields, and the fields under unset fields, have no
+ * constraints, and the entity has no entity constraints</li>
+ * <li>the caller has update access to all updated fields</li>
+ * <li>the updated fields are not identity fields or case insensitive
+ * index fields</li>
+ * <li>the entity has no hooks</li>
+ * </ul>
+ * The caller also has to make sure no projection is requested, and
+ * the update is not an update-if-current request.
+ *
+ * The update pushes a new docver to the updated documents, so any
+ * concurrent read-modify-write update of the same documents detects
+ * the modification.
+ */
+public class PushdownUpdater implements DocUpdater {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PushdownUpdater.class);
+
+    /**
+     * Max number of docvers kept in a document by a pushdown update
+     */
+    public static final int MAX_DOCVERS = 16;
+
+    private static final String DOCVER_FLD = DocTranslator.HIDDEN_SUB_PATH.toString() + "." + DocVerUtil.DOCVER;
+
+    private final DBObject mongoUpdate;
+    private final WriteConcern writeConcern;
+
+    public PushdownUpdater(DBObject mongoUpdate, WriteConcern writeConcern) {
+        this.mongoUpdate = mongoUpdate;
+        this.writeConcern = writeConcern;
+    }
+
+    /**
+     * Returns the mongo update expression if the update can be run on
+     * the server, null otherwise. The docver update is added when the
+     * update is executed.
+     */
+    public static DBObject getPushdownUpdate(ExpressionTranslator xtranslator,
+                                             EntityMetadata md,
+                                             UpdateExpression update,
+                                             Set<String> callerRoles) {
+        if (md.getEntitySchema().getConstraints() != null && !md.getEntitySchema().getConstraints().isEmpty()) {
+            return null;
+        }
+        if (md.getEntityInfo().getHooks() != null && !md.getEntityInfo().getHooks().getHooks().isEmpty()) {
+            return null;
+        }
+        DBObject mongoUpdate;
+        try {
+            mongoUpdate = xtranslator.translate(md, update);
+        } catch (CannotTranslateException e) {
+            LOGGER.debug("Cannot translate update {}", update);
+            return null;
+        }
+        if (!filterNulls(mongoUpdate)) {
+            LOGGER.debug("Nested null values in {}", update);
+            return null;
+        }
+        List<Path> reserved = new ArrayList<>();
+        reserved.add(DocTranslator.ID_PATH);
+        reserved.add(DocTranslator.OBJECT_TYPE);
+        Field[] identityFields = md.getEntitySchema().getIdentityFields();
+        if (identityFields != null) {
+            for (Field f : identityFields) {
+                reserved.add(f.getFullPath());
+            }
+        }
+        reserved.addAll(DocTranslator.getCaseInsensitiveIndexes(md.getEntityInfo().getIndexes().getIndexes()).
+                        map(k -> k.getField()).
+                        collect(Collectors.toList()));
+        for (String op : mongoUpdate.keySet()) {
+            for (String field : ((DBObject) mongoUpdate.get(op)).keySet()) {
+                Path path = new Path(field);
+                for (Path r : reserved) {
+                    if (isPrefix(path, r) || isPrefix(r, path)) {
+                        return null;
+                    }
+                }
+                FieldTreeNode node = md.resolve(path);
+                if (!checkAncestors(node, callerRoles) || !checkSubtree(node, callerRoles)) {
+                    return null;
+                }
+            }
+        }
+        return mongoUpdate;
+    }
+
+    /**
+     * Read-modify-write updates remove null fields from the updated
+     * document, so setting a field to null is an unset. Returns false
+     * if a set value contains nulls, those are left to the
+     * read-modify-write update.
+     */
+    private static boolean filterNulls(DBObject mongoUpdate) {
+        DBObject set = (DBObject) mongoUpdate.get("$set");
+        if (set != null) {
+            for (String field : new ArrayList<>(set.keySet())) {
+                Object value = set.get(field);
+                if (value == null) {
+                    set.removeField(field);
+                    DBObject unset = (DBObject) mongoUpdate.get("$unset");
+                    if (unset == null) {
+                        unset = new BasicDBObject();
+                        mongoUpdate.put("$unset", unset);
+                    }
+                    unset.put(field, "");
+                } else if (containsNull(value)) {
+                    return false;
+                }
+            }
+            if (set.keySet().isEmpty()) {
+                mongoUpdate.removeField("$set");
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsNull(Object value) {
+        if (value == null) {
+            return true;
+        } else if (value instanceof List) {
+            for (Object x : (List<?>) value) {
+                if (containsNull(x)) {
+                    return true;
+                }
+            }
+        } else if (value instanceof DBObject) {
+            DBObject obj = (DBObject) value;
+            for (String key : obj.keySet()) {
+                if (containsNull(obj.get(key))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPrefix(Path prefix, Path p) {
+        if (prefix.numSegments() > p.numSegments()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.numSegments(); i++) {
+            if (!prefix.head(i).equals(p.head(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks update access of the parents of the node
+     */
+    private static boolean checkAncestors(FieldTreeNode node, Set<String> callerRoles) {
+        for (FieldTreeNode trc = node.getParent(); trc != null; trc = trc.getParent()) {
+            if (trc instanceof Field && !hasUpdateAccess((Field) trc, callerRoles)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A field without update access roles inherits the entity access
+     */
+    private static boolean hasUpdateAccess(Field f, Set<String> callerRoles) {
+        Access access = f.getAccess().getUpdate();
+        return access.getRoles().isEmpty() || access.hasAccess(callerRoles);
+    }
+
+    /**
+     * Checks update access and constraints of the node, and all the
+     * fields under it
+     */
+    private static boolean checkSubtree(FieldTreeNode node, Set<String> callerRoles) {
+        if (node instanceof Field) {
+            Field f = (Field) node;
+            if ((f.getConstraints() != null && !f.getConstraints().isEmpty())
+                    || !hasUpdateAccess(f, callerRoles)) {
+                return false;
+            }
+        }
+        for (Iterator<? extends FieldTreeNode> itr = node.getChildren(); itr.hasNext();) {
+            if (!checkSubtree(itr.next(), callerRoles)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void update(CRUDOperationContext ctx,
+                       DBCollection collection,
+                       EntityMetadata md,
+                       CRUDUpdateResponse response,
+                       DBObject query) {
+        // Push the new docver to the top of the docver list
+        DBObject u = (DBObject) ((BasicDBObject) mongoUpdate).copy();
+        u.put("$push", new BasicDBObject(DOCVER_FLD, new BasicDBObject("$each", Arrays.asList(new ObjectId())).
+                                         append("$position", 0).
+                                         append("$slice", MAX_DOCVERS)));
+        LOGGER.debug("updateMany query={} update={}", query, u);
+        WriteResult result = writeConcern == null ? collection.updateMulti(query, u)
+            : collection.update(query, u, false, true, writeConcern);
+        int n = result.getN();
+        LOGGER.debug("Updated {} documents", n);
+        ctx.setInputDocuments(new ArrayList<DocCtx>());
+        ctx.setDocumentStream(new ListDocumentStream<DocCtx>(new ArrayList<>()));
+        response.setNumMatched(n);
+        response.setNumUpdated(n);
+        response.setNumFailed(0);
+    }
+}
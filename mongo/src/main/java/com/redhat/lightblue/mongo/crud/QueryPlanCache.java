@@ -0,0 +1,186 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+import com.redhat.lightblue.query.Sort;
+
+/**
+ * Caches the translated mongo projections, so repeated requests of
+ * the same shape don't rebuild them. Building the mongo projection
+ * walks the metadata for the fields required by the query and sort,
+ * and only depends on which fields the query uses, not on the
+ * values. So entries are keyed by the entity name and version, the
+ * projection, the query shape with the values removed, and the
+ * sort. An entry is only used for the same EntityMetadata instance it
+ * was built for, so a metadata reload invalidates it.
+ *
+ * Queries and sorts are not cached. Translated queries depend on the
+ * literal values, so they rarely repeat, and building a key costs
+ * about as much as translating them.
+ *
+ * The cache is a bounded LRU map. Cached DBObjects are copied before
+ * they are returned, so callers can modify them. The size is set
+ * with the planCacheSize controller option, and it is disabled by
+ * default.
+ */
+public class QueryPlanCache {
+
+    private static final String VALUE_SLOT = "?";
+
+    private static final class Entry {
+        final EntityMetadata md;
+        final Object value;
+
+        Entry(EntityMetadata md, Object value) {
+            this.md = md;
+            this.value = value;
+        }
+    }
+
+    private final int maxSize;
+    private final Map<String, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxSize Max number of entries. If 0, nothing is cached.
+     */
+    public QueryPlanCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > QueryPlanCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the translated mongo projection for the given
+     * projection, query and sort
+     */
+    public DBObject getProjection(EntityMetadata md, Projection projection, QueryExpression query, Sort sort, Supplier<DBObject> translator) {
+        if (maxSize <= 0) {
+            return translator.get();
+        }
+        String key = projection + "|" + (query == null ? null : shapeOf(query.toJson())) + "|" + sort;
+        return copy(get(md, key, translator));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private <T> T get(EntityMetadata md, String shape, Supplier<T> supplier) {
+        String key = md.getName() + "|" + md.getVersion().getValue() + "|" + shape;
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.md == md) {
+            hits.incrementAndGet();
+            return (T) entry.value;
+        }
+        misses.incrementAndGet();
+        // Build outside the lock. Concurrent misses for the same key
+        // build the same value, and the last one wins
+        T value = supplier.get();
+        if (value != null) {
+            synchronized (this) {
+                entries.put(key, new Entry(md, value));
+            }
+        }
+        return value;
+    }
+
+    private static DBObject copy(DBObject obj) {
+        if (obj instanceof BasicDBObject) {
+            return (DBObject) ((BasicDBObject) obj).copy();
+        }
+        return obj;
+    }
+
+    /**
+     * Returns a copy of the query with the values replaced by a
+     * placeholder
+     */
+    static JsonNode shapeOf(JsonNode node) {
+        if (node instanceof ObjectNode) {
+            ObjectNode ret = JsonNodeFactory.instance.objectNode();
+            for (Iterator<Map.Entry<String, JsonNode>> itr = node.fields(); itr.hasNext();) {
+                Map.Entry<String, JsonNode> field = itr.next();
+                switch (field.getKey()) {
+                    case "rvalue":
+                    case "values":
+                    case "regex":
+                        ret.put(field.getKey(), VALUE_SLOT);
+                        break;
+                    default:
+                        ret.set(field.getKey(), shapeOf(field.getValue()));
+                }
+            }
+            return ret;
+        } else if (node instanceof ArrayNode) {
+            ArrayNode ret = JsonNodeFactory.instance.arrayNode();
+            for (JsonNode x : node) {
+                ret.add(shapeOf(x));
+            }
+            return ret;
+        } else {
+            return node;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.nio.ByteBuffer;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.LazyBSONCallback;
+
+import com.mongodb.DBCallback;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
+import com.mongodb.LazyDBCallback;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.LazyDBObject;
+
+/**
+ * A DBObject that keeps the raw BSON bytes of a document read from
+ * the db. Fields are decoded lazily if they are accessed through the
+ * DBObject interface, so listeners and the document version code
+ * still work, but the translator reads the document directly from
+ * the raw bytes using a BsonReader. The intermediate map based
+ * DBObject is never built.
+ *
+ * Set {@link #DECODER_FACTORY} as the decoder factory of a cursor to
+ * receive RawDBObjects.
+ */
+public class RawDBObject extends LazyDBObject {
+
+    public static final DBDecoderFactory DECODER_FACTORY = new DBDecoderFactory() {
+        @Override
+        public DBDecoder create() {
+            return new RawDBDecoder();
+        }
+    };
+
+    private static class RawDBDecoder extends LazyDBDecoder {
+        @Override
+        public DBCallback getDBCallback(DBCollection collection) {
+            return new LazyDBCallback(collection) {
+                @Override
+                public Object createObject(byte[] bytes, int offset) {
+                    return new RawDBObject(bytes, offset, this);
+                }
+            };
+        }
+    }
+
+    public RawDBObject(byte[] bytes, int offset, LazyBSONCallback callback) {
+        super(bytes, offset, callback);
+    }
+
+    /**
+     * Returns a reader positioned at the start of this document
+     */
+    public BsonReader getReader() {
+        return new BsonBinaryReader(ByteBuffer.wrap(getBytes(), getOffset(), getBSONSize()).slice());
+    }
+}
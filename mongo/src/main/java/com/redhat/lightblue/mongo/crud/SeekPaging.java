@@ -0,0 +1,174 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.Path;
+
+/**
+ * Keyset (seek) paging support. Instead of skipping the first n
+ * documents of the result set, the query is rewritten into a range
+ * predicate that starts right after the last document of the
+ * previous page. The position of that document is passed around as
+ * an opaque continuation token containing the values of the sort
+ * keys and the _id of the last returned document.
+ *
+ * The _id is always appended to the sort as the tie-breaker, so the
+ * ordering is total, and a page never repeats or misses a document
+ * with the same sort key values as the page boundary. For best
+ * results, sort keys should be single-valued fields covered by an
+ * index together with _id.
+ *
+ * Given sort keys k1..kn, and the last values v1..vn, the seek query
+ * is:
+ * <pre>
+ *  { $and: [ query,
+ *            { $or: [ {k1: {$gt:v1}},
+ *                     {k1:v1, k2: {$gt:v2}},
+ *                     ...
+ *                     {k1:v1, ..., kn: {$gt:vn}} ] } ] }
+ * </pre>
+ * with $lt instead of $gt for descending keys.
+ */
+public class SeekPaging {
+
+    private static final String TOKEN_SORT = "s";
+    private static final String TOKEN_VALUES = "v";
+
+    private final List<String> fields = new ArrayList<>();
+    private final List<Boolean> descending = new ArrayList<>();
+    private final DBObject sort;
+
+    /**
+     * Constructs a seek paging helper for the given mongo sort. The
+     * sort can be null, in which case the results are ordered by _id
+     */
+    public SeekPaging(DBObject mongoSort) {
+        sort = new BasicDBObject();
+        if (mongoSort != null) {
+            for (String key : mongoSort.keySet()) {
+                Object dir = mongoSort.get(key);
+                fields.add(key);
+                descending.add(((Number) dir).intValue() < 0);
+                sort.put(key, dir);
+            }
+        }
+        if (!fields.contains(MongoCRUDController.ID_STR)) {
+            fields.add(MongoCRUDController.ID_STR);
+            descending.add(Boolean.FALSE);
+            sort.put(MongoCRUDController.ID_STR, 1);
+        }
+    }
+
+    /**
+     * Returns the sort to be used for the seek query. This is the
+     * requested sort with _id appended as the tie-breaker
+     */
+    public DBObject getSort() {
+        return sort;
+    }
+
+    /**
+     * Rewrites the query so that it only matches documents after the
+     * position given in the continuation token. If the token is null,
+     * the query is returned unmodified.
+     */
+    public DBObject seekQuery(DBObject query, String continuationToken) {
+        if (continuationToken == null) {
+            return query;
+        }
+        List<Object> values = decode(continuationToken);
+        BasicDBList or = new BasicDBList();
+        for (int i = 0; i < fields.size(); i++) {
+            BasicDBObject clause = new BasicDBObject();
+            for (int j = 0; j < i; j++) {
+                clause.append(fields.get(j), values.get(j));
+            }
+            Object range = after(values.get(i), descending.get(i));
+            if (range != null) {
+                clause.append(fields.get(i), range);
+                or.add(clause);
+            }
+        }
+        DBObject seek = new BasicDBObject("$or", or);
+        if (query == null) {
+            return seek;
+        }
+        BasicDBList and = new BasicDBList();
+        and.add(query);
+        and.add(seek);
+        return new BasicDBObject("$and", and);
+    }
+
+    /**
+     * Returns the range predicate for the values that come after
+     * value in the sort order. Null and missing values sort before
+     * everything else, so nothing comes before null in descending
+     * order, and everything non-null comes after null in ascending
+     * order.
+     */
+    private Object after(Object value, boolean desc) {
+        if (value == null) {
+            return desc ? null : new BasicDBObject("$ne", null);
+        } else {
+            return new BasicDBObject(desc ? "$lt" : "$gt", value);
+        }
+    }
+
+    /**
+     * Builds the continuation token pointing to the position right
+     * after the given document
+     */
+    public String getToken(DBObject doc) {
+        BasicDBList values = new BasicDBList();
+        for (String field : fields) {
+            values.add(DocTranslator.getDBObject(doc, new Path(field)));
+        }
+        BasicDBList sortFields = new BasicDBList();
+        sortFields.addAll(fields);
+        BasicDBObject token = new BasicDBObject(TOKEN_SORT, sortFields).append(TOKEN_VALUES, values);
+        return Base64.getUrlEncoder().encodeToString(token.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<Object> decode(String continuationToken) {
+        try {
+            String json = new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+            BasicDBObject token = BasicDBObject.parse(json);
+            List<?> sortFields = (List<?>) token.get(TOKEN_SORT);
+            List<Object> values = (List<Object>) token.get(TOKEN_VALUES);
+            if (sortFields == null || values == null || !fields.equals(sortFields) || values.size() != fields.size()) {
+                throw Error.get(MongoCrudConstants.ERR_INVALID_CONTINUATION_TOKEN, continuationToken);
+            }
+            return values;
+        } catch (Error e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw Error.get(MongoCrudConstants.ERR_INVALID_CONTINUATION_TOKEN, continuationToken);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import com.redhat.lightblue.config.ControllerConfiguration;
+import com.redhat.lightblue.mongo.common.DaemonThreadFactory;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * This class parses the result stream prefetch settings from the
+ * controller configuration, and keeps the thread pools used by
+ * {@link PrefetchingCursorStream}. Prefetching is disabled by default.
+ *
+ * <pre>
+ *   options: {
+ *     prefetch: {
+ *       enabled: true,
+ *       queueDepth: 4,
+ *       poolSize: 4,
+ *       batchSize: 64
+ *     }
+ *   }
+ * </pre>
+ *
+ * queueDepth is the number of batches read ahead for a single
+ * cursor. poolSize is the number of threads translating documents,
+ * shared by all cursors. batchSize is the number of documents
+ * translated as a unit.
+ */
+public class StreamPrefetchCfg {
+    private boolean enabled = false;
+    private int queueDepth = 4;
+    private int poolSize = Runtime.getRuntime().availableProcessors();
+    private int batchSize = 64;
+
+    private ExecutorService producerPool;
+    private ExecutorService workerPool;
+
+    public StreamPrefetchCfg(ControllerConfiguration controllerCfg) {
+        if (controllerCfg != null) {
+            ObjectNode options = controllerCfg.getOptions();
+            if (options != null) {
+                JsonNode prefetch = options.get("prefetch");
+                if (prefetch != null && !(prefetch instanceof ObjectNode)) {
+                    throw Error.get(MongoCrudConstants.ERR_CONFIGURATION_ERROR, "options.prefetch must be an object");
+                }
+                options = (ObjectNode) prefetch;
+                if (options != null) {
+                    JsonNode value = options.get("enabled");
+                    if (value != null)
+                        enabled = value.asBoolean();
+                    value = options.get("queueDepth");
+                    if (value != null)
+                        queueDepth = value.asInt();
+                    value = options.get("poolSize");
+                    if (value != null)
+                        poolSize = value.asInt();
+                    value = options.get("batchSize");
+                    if (value != null)
+                        batchSize = value.asInt();
+                }
+            }
+        }
+    }
+
+    /**
+     * If true, find results are read ahead and translated in parallel
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean b) {
+        enabled = b;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int n) {
+        queueDepth = n;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public void setPoolSize(int n) {
+        poolSize = n;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int n) {
+        batchSize = n;
+    }
+
+    /**
+     * Returns the pool running the cursor readers, one thread per open
+     * cursor. Threads are daemon threads, and are created on demand.
+     */
+    public synchronized ExecutorService getProducerPool() {
+        if (producerPool == null) {
+            producerPool = Executors.newCachedThreadPool(new DaemonThreadFactory("prefetch-reader"));
+        }
+        return producerPool;
+    }
+
+    /**
+     * Returns the pool translating the documents
+     */
+    public synchronized ExecutorService getWorkerPool() {
+        if (workerPool == null) {
+            workerPool = Executors.newFixedThreadPool(poolSize < 1 ? 1 : poolSize, new DaemonThreadFactory("prefetch-translator"));
+        }
+        return workerPool;
+    }
+
+    /**
+     * Shuts down the pools. They are recreated if used again.
+     */
+    public synchronized void shutdown() {
+        if (producerPool != null) {
+            producerPool.shutdownNow();
+            producerPool = null;
+        }
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+            workerPool = null;
+        }
+    }
+}
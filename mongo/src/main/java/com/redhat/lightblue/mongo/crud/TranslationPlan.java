@@ -0,0 +1,177 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.redhat.lightblue.ResultMetadata;
+import com.redhat.lightblue.metadata.ArrayElement;
+import com.redhat.lightblue.metadata.ArrayField;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.FieldCursor;
+import com.redhat.lightblue.metadata.FieldTreeNode;
+import com.redhat.lightblue.metadata.MetadataObject;
+import com.redhat.lightblue.metadata.ObjectField;
+import com.redhat.lightblue.metadata.ResolvedReferenceField;
+import com.redhat.lightblue.metadata.SimpleArrayElement;
+import com.redhat.lightblue.metadata.SimpleField;
+import com.redhat.lightblue.metadata.Type;
+
+/**
+ * A precompiled BSON to JSON translation plan for an entity. The
+ * plan for an object level is a flat array of field instructions in
+ * metadata order, so translating a document does not walk the
+ * metadata tree, or look up field properties.
+ *
+ * Plans are compiled once for an EntityMetadata instance, and kept
+ * as long as that metadata instance is reachable. A new metadata
+ * version is a new instance, so it gets its own plan.
+ */
+final class TranslationPlan {
+
+    enum Kind {
+        RESULT_METADATA,
+        DOCVER,
+        SIMPLE,
+        OBJECT,
+        ARRAY
+    }
+
+    static final class FieldInstruction {
+        final String name;
+        final Kind kind;
+        /**
+         * Type of a simple field, or type of the elements of a simple
+         * array
+         */
+        final Type type;
+        /**
+         * Plan of an object field, or plan of the elements of an
+         * object array
+         */
+        final TranslationPlan object;
+
+        FieldInstruction(String name, Kind kind, Type type, TranslationPlan object) {
+            this.name = name;
+            this.kind = kind;
+            this.type = type;
+            this.object = object;
+        }
+    }
+
+    private static final Map<EntityMetadata, TranslationPlan> PLANS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    final FieldInstruction[] fields;
+    private final Map<String, Integer> index = new HashMap<>();
+
+    private TranslationPlan(List<FieldInstruction> fields) {
+        this.fields = fields.toArray(new FieldInstruction[fields.size()]);
+        for (int i = 0; i < this.fields.length; i++) {
+            index.put(this.fields[i].name, i);
+        }
+    }
+
+    /**
+     * Returns the index of the instruction for the field, or -1 if
+     * the field is not in the plan
+     */
+    int indexOf(String fieldName) {
+        Integer i = index.get(fieldName);
+        return i == null ? -1 : i;
+    }
+
+    boolean isEmpty() {
+        return fields.length == 0;
+    }
+
+    /**
+     * Returns the plan for the entity, compiling it if necessary
+     */
+    static TranslationPlan get(EntityMetadata md) {
+        TranslationPlan plan = PLANS.get(md);
+        if (plan == null) {
+            plan = compile(md);
+            PLANS.put(md, plan);
+        }
+        return plan;
+    }
+
+    static TranslationPlan compile(EntityMetadata md) {
+        FieldCursor cursor = md.getFieldCursor();
+        if (cursor.firstChild()) {
+            return compileObject(cursor);
+        } else {
+            return new TranslationPlan(Collections.emptyList());
+        }
+    }
+
+    /**
+     * Called after firstChild is called on cursor
+     */
+    private static TranslationPlan compileObject(FieldCursor cursor) {
+        List<FieldInstruction> list = new ArrayList<>();
+        do {
+            FieldTreeNode field = cursor.getCurrentNode();
+            String fieldName = field.getName();
+            if (isFlagSet(field, ResultMetadata.MD_PROPERTY_RESULT_METADATA)) {
+                list.add(new FieldInstruction(fieldName, Kind.RESULT_METADATA, null, null));
+            } else if (isFlagSet(field, ResultMetadata.MD_PROPERTY_DOCVER)) {
+                list.add(new FieldInstruction(fieldName, Kind.DOCVER, null, null));
+            } else if (field instanceof SimpleField) {
+                list.add(new FieldInstruction(fieldName, Kind.SIMPLE, field.getType(), null));
+            } else if (field instanceof ObjectField) {
+                list.add(new FieldInstruction(fieldName, Kind.OBJECT, null, compileChildren(cursor)));
+            } else if (field instanceof ResolvedReferenceField) {
+                // Resolved references are arrays, but they are not translated
+            } else if (field instanceof ArrayField) {
+                if (cursor.firstChild()) {
+                    FieldTreeNode el = cursor.getCurrentNode();
+                    if (el instanceof SimpleArrayElement) {
+                        list.add(new FieldInstruction(fieldName, Kind.ARRAY, el.getType(), null));
+                    } else if (el instanceof ArrayElement) {
+                        list.add(new FieldInstruction(fieldName, Kind.ARRAY, null, compileChildren(cursor)));
+                    }
+                    cursor.parent();
+                }
+            }
+            // References are not translated
+        } while (cursor.nextSibling());
+        return new TranslationPlan(list);
+    }
+
+    private static TranslationPlan compileChildren(FieldCursor cursor) {
+        if (cursor.firstChild()) {
+            TranslationPlan plan = compileObject(cursor);
+            cursor.parent();
+            return plan;
+        } else {
+            return new TranslationPlan(Collections.emptyList());
+        }
+    }
+
+    private static boolean isFlagSet(FieldTreeNode field, String property) {
+        Object x = ((MetadataObject) field).getProperties().get(property);
+        return x instanceof Boolean && ((Boolean) x).booleanValue();
+    }
+}
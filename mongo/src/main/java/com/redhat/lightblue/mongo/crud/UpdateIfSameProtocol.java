@@ -101,6 +101,11 @@ public class UpdateIfSameProtocol implements BatchUpdate {
     
     @Override
     public void addDoc(DBObject doc) {
+        addDoc(doc,null);
+    }
+
+    @Override
+    public void addDoc(DBObject doc, DBObject update) {
         BatchDoc batchDoc=null;
         // Is this document in the versions set? If not, we cannot update it
         Object id=DocTranslator.createIdFrom(doc.get("_id"));
@@ -117,8 +122,14 @@ public class UpdateIfSameProtocol implements BatchUpdate {
             batch.add(batchDoc);
             DBObject query=new BasicDBObject("_id",doc.get("_id")).
                 append(MongoSafeUpdateProtocol.DOCVER_FLD0,batchDoc.version.version);
-            LOGGER.debug("replaceQuery={}",query);
-            bwo.find(query).replaceOne(batchDoc.doc);                    
+            if(update==null) {
+                LOGGER.debug("replaceQuery={}",query);
+                bwo.find(query).replaceOne(batchDoc.doc);
+            } else {
+                update=BatchUpdate.addDocVer(update,batchDoc.doc);
+                LOGGER.debug("updateQuery={} update={}",query,update);
+                bwo.find(query).updateOne(update);
+            }
         }
     }
 
@@ -18,9 +18,21 @@
  */
 package com.redhat.lightblue.mongo.metadata;
 
-import java.lang.ref.WeakReference;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,15 +40,50 @@ import org.slf4j.LoggerFactory;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.DuplicateKeyException;
 import com.mongodb.WriteResult;
 import com.redhat.lightblue.EntityVersion;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.metadata.MetadataStatus;
+import com.redhat.lightblue.mongo.common.DaemonThreadFactory;
 
+/**
+ * Caches entity metadata. The cache is invalidated when the
+ * collectionVersion document in the metadata collection changes.
+ *
+ * The collectionVersion document also keeps a version stamp for each
+ * entity. Metadata updates increment both the collection version and
+ * the stamp of the updated entity, so when the collection version
+ * changes, only the entities whose stamps changed are invalidated. If
+ * the collection version changed more than the stamps, for instance
+ * because it is incremented by an older version of this class, the
+ * whole cache is invalidated. Cached entries expire cacheTTLMsecs
+ * after they are loaded.
+ *
+ * Entity infos, entity version lists and entity name lists are cached
+ * with the same expiration and invalidation. Entity name lists are
+ * invalidated when any entity changes.
+ *
+ * Concurrent requests for an entity version that is not cached wait
+ * for a single load. Entries that will expire within the refresh-ahead
+ * period are reloaded in the background while the cached entry is
+ * still returned.
+ *
+ * Entries are strongly referenced, and the number of entries is
+ * bounded. When the cache is full, the least recently used entry is
+ * evicted. Lookups read an immutable snapshot of the cache without
+ * locking. Modifications copy the snapshot under the lock, and
+ * publish the copy.
+ */
 public class MetadataCache {
 
     private static Logger LOGGER = LoggerFactory.getLogger(MetadataCache.class);
 
     private static final String LITERAL_COLL_VER = "collectionVersion";
+    private static final String LITERAL_ENTITY_VERSIONS = "entityVersions";
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_REFRESH_AHEAD_MSECS = 30l * 1000l;
 
     /**
      * This is the collection version number we expect to see in the database.
@@ -45,6 +92,11 @@ public class MetadataCache {
      */
     private long expectedCollectionVersion;
 
+    /**
+     * The entity version stamps read with expectedCollectionVersion
+     */
+    private Map<String, Long> expectedEntityVersions = new HashMap<>();
+
     /**
      * Last time we retrieved collection version
      */
@@ -56,7 +108,7 @@ public class MetadataCache {
     private long versionLookupPeriodMsecs = 10l * 1000l;
 
     /**
-     * Cache clear period
+     * Cache entry expiration period
      */
     private long cacheTTLMsecs = 10l * 60l * 1000l;
 
@@ -65,7 +117,64 @@ public class MetadataCache {
      */
     private volatile long lastCacheRefreshTime = 0l;
 
-    private final Map<EntityVersion, WeakReference<EntityMetadata>> cache = new HashMap<>();
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private volatile long refreshAheadMsecs = DEFAULT_REFRESH_AHEAD_MSECS;
+
+    private static final class Entry {
+        final EntityMetadata md;
+        final long loadTime;
+        // The access clock value of the last lookup, used for LRU eviction
+        volatile long lastAccess;
+
+        Entry(EntityMetadata md, long loadTime, long lastAccess) {
+            this.md = md;
+            this.loadTime = loadTime;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * The cache contents. The map is never modified after it is published.
+     */
+    private volatile Map<EntityVersion, Entry> cache = Collections.emptyMap();
+
+    /**
+     * A cached entity info, version list or entity name list. Entity
+     * infos and versions are cached as they are read from the db, and
+     * parsed for every caller, so callers do not share mutable objects.
+     */
+    private static final class Value<V> {
+        final V value;
+        final long loadTime;
+
+        Value(V value, long loadTime) {
+            this.value = value;
+            this.loadTime = loadTime;
+        }
+    }
+
+    private final Map<String, Value<DBObject>> entityInfos = new ConcurrentHashMap<>();
+    private final Map<String, Value<List<DBObject>>> entityVersions = new ConcurrentHashMap<>();
+    private final Map<Set<MetadataStatus>, Value<String[]>> entityNames = new ConcurrentHashMap<>();
+
+    /**
+     * The running loads
+     */
+    private final ConcurrentHashMap<EntityVersion, CompletableFuture<EntityMetadata>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * Incremented when entries are invalidated
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private ExecutorService refreshPool;
+
+    private final AtomicLong accessClock = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
 
     /**
      * Sets cache parameters. If null is passed, that parameter is not changed.
@@ -80,28 +189,306 @@ public class MetadataCache {
         }
     }
 
+    /**
+     * Sets the maximum number of cached entity versions. If null is
+     * passed, it is not changed.
+     */
+    public void setMaxEntries(Integer maxEntries) {
+        if (maxEntries != null) {
+            this.maxEntries = Math.max(maxEntries, 1);
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Sets how long before expiration an entry is reloaded in the
+     * background. If null is passed, it is not changed. Refresh-ahead
+     * is disabled if this is 0, or not less than the cache TTL.
+     */
+    public void setRefreshAhead(Long refreshAheadMsecs) {
+        if (refreshAheadMsecs != null) {
+            this.refreshAheadMsecs = refreshAheadMsecs;
+        }
+    }
+
     public EntityMetadata lookup(DBCollection collection, String entityName, String version) {
+        Entry entry = lookupEntry(collection, new EntityVersion(entityName, version), System.currentTimeMillis());
+        return entry == null ? null : entry.md;
+    }
+
+    /**
+     * Returns the metadata from the cache, or loads it using loader
+     * and caches it. Only one thread loads an entity version, the
+     * others wait for its result. If the entry will expire soon, it is
+     * returned, and reloaded in the background.
+     */
+    public EntityMetadata get(DBCollection collection, String entityName, String version, Supplier<EntityMetadata> loader) {
+        EntityVersion key = new EntityVersion(entityName, version);
+        long now = System.currentTimeMillis();
+        Entry entry = lookupEntry(collection, key, now);
+        if (entry != null) {
+            if (refreshAheadMsecs > 0 && refreshAheadMsecs < cacheTTLMsecs
+                && entry.loadTime + cacheTTLMsecs - refreshAheadMsecs < now) {
+                load(key, loader, true);
+            }
+            return entry.md;
+        }
+        try {
+            return load(key, loader, false).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof java.lang.Error) {
+                throw (java.lang.Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the entity info document from the cache, or loads it
+     * using loader and caches it. Null values are not cached. The
+     * returned document is shared, and must not be modified.
+     */
+    public DBObject getEntityInfo(DBCollection collection, String entityName, Supplier<DBObject> loader) {
+        return getValue(collection, entityInfos, entityName, loader);
+    }
+
+    /**
+     * Returns the version documents of the entity from the cache, or
+     * loads them using loader and caches them. The returned documents
+     * are shared, and must not be modified.
+     */
+    public List<DBObject> getEntityVersions(DBCollection collection, String entityName, Supplier<List<DBObject>> loader) {
+        return getValue(collection, entityVersions, entityName, loader);
+    }
+
+    /**
+     * Returns the entity names with the given statuses from the cache,
+     * or loads them using loader and caches them. All entity names are
+     * invalidated when any entity changes.
+     */
+    public String[] getEntityNames(DBCollection collection, Set<MetadataStatus> statuses, Supplier<String[]> loader) {
+        String[] names = getValue(collection, entityNames, statuses, loader);
+        return names == null ? null : names.clone();
+    }
+
+    private <K, V> V getValue(DBCollection collection, Map<K, Value<V>> map, K key, Supplier<V> loader) {
         long now = System.currentTimeMillis();
+        checkVersion(collection, now);
+        Value<V> value = map.get(key);
+        if (value != null && value.loadTime + cacheTTLMsecs >= now) {
+            return value.value;
+        }
+        long gen = generation.get();
+        V loaded = loader.get();
+        if (loaded != null) {
+            synchronized (this) {
+                if (gen == generation.get()) {
+                    map.put(key, new Value<>(loaded, now));
+                }
+            }
+        }
+        return loaded;
+    }
+
+    private void checkVersion(DBCollection collection, long now) {
         if (lastCacheRefreshTime + cacheTTLMsecs < now) {
             fullRefresh(collection, now);
         } else if (lastVersionLookupTime + versionLookupPeriodMsecs < now) {
             refreshCollectionVersion(collection, now, false);
         }
+    }
+
+    private Entry lookupEntry(DBCollection collection, EntityVersion key, long now) {
+        checkVersion(collection, now);
+
+        Entry entry = cache.get(key);
+        if (entry != null && entry.loadTime + cacheTTLMsecs >= now) {
+            entry.lastAccess = accessClock.incrementAndGet();
+            hits.increment();
+            return entry;
+        } else {
+            misses.increment();
+            return null;
+        }
+    }
 
-        EntityMetadata md;
-        EntityVersion v = new EntityVersion(entityName, version);
-        WeakReference<EntityMetadata> ref = cache.get(v);
-        if (ref != null) {
-            md = ref.get();
+    /**
+     * Returns the future for the running load of the entity version,
+     * or starts one. A foreground load runs in the calling thread, a
+     * background load runs in the refresh thread.
+     */
+    private CompletableFuture<EntityMetadata> load(EntityVersion key, Supplier<EntityMetadata> loader, boolean background) {
+        CompletableFuture<EntityMetadata> future = new CompletableFuture<>();
+        CompletableFuture<EntityMetadata> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            return running;
+        }
+        Runnable task = () -> {
+            // Do not cache what is loaded if it is invalidated during the load
+            long gen = generation.get();
+            try {
+                EntityMetadata md = loader.get();
+                put(md, gen);
+                loading.remove(key, future);
+                future.complete(md);
+            } catch (Throwable t) {
+                // Any failure must complete the future, or the waiting threads block
+                LOGGER.debug("Cannot load {}: {}", key, t);
+                loading.remove(key, future);
+                future.completeExceptionally(t);
+            }
+        };
+        if (background) {
+            try {
+                getRefreshPool().execute(task);
+            } catch (RejectedExecutionException e) {
+                loading.remove(key, future);
+                future.cancel(false);
+            }
         } else {
-            md = null;
+            task.run();
+        }
+        return future;
+    }
+
+    private synchronized ExecutorService getRefreshPool() {
+        if (refreshPool == null) {
+            refreshPool = Executors.newSingleThreadExecutor(new DaemonThreadFactory("metadata-refresh"));
+        }
+        return refreshPool;
+    }
+
+    public void put(EntityMetadata md) {
+        put(md, -1);
+    }
+
+    /**
+     * Caches md if the cache is not invalidated since generation gen,
+     * or gen is -1
+     */
+    private synchronized void put(EntityMetadata md, long gen) {
+        if (gen != -1 && gen != generation.get()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Map<EntityVersion, Entry> copy = new HashMap<>(cache);
+        copy.values().removeIf(e -> e.loadTime + cacheTTLMsecs < now);
+        copy.put(new EntityVersion(md.getName(), md.getVersion().getValue()), new Entry(md, now, accessClock.incrementAndGet()));
+        while (copy.size() > maxEntries) {
+            evictLeastRecentlyUsed(copy);
+        }
+        cache = Collections.unmodifiableMap(copy);
+    }
+
+    private void evictLeastRecentlyUsed(Map<EntityVersion, Entry> map) {
+        EntityVersion lru = null;
+        long lruAccess = Long.MAX_VALUE;
+        for (Map.Entry<EntityVersion, Entry> e : map.entrySet()) {
+            long access = e.getValue().lastAccess;
+            if (access < lruAccess) {
+                lru = e.getKey();
+                lruAccess = access;
+            }
         }
+        LOGGER.debug("Evicting {} from metadata cache", lru);
+        map.remove(lru);
+        evictions.increment();
+    }
+
+    /**
+     * Removes all entries
+     */
+    private synchronized void clear() {
+        if (!cache.isEmpty()) {
+            cache = Collections.emptyMap();
+        }
+        entityInfos.clear();
+        entityVersions.clear();
+        entityNames.clear();
+        generation.incrementAndGet();
+        invalidations.increment();
+    }
+
+    /**
+     * Removes all versions of the given entities
+     */
+    private synchronized void invalidate(Set<String> entityNames) {
+        LOGGER.debug("Invalidating {}", entityNames);
+        Map<EntityVersion, Entry> copy = new HashMap<>(cache);
+        copy.keySet().removeIf(k -> entityNames.contains(k.getEntity()));
+        cache = Collections.unmodifiableMap(copy);
+        entityInfos.keySet().removeAll(entityNames);
+        entityVersions.keySet().removeAll(entityNames);
+        this.entityNames.clear();
+        generation.incrementAndGet();
+        invalidations.increment();
+    }
+
+    /**
+     * Number of lookups that found the metadata in the cache
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Number of lookups that did not find the metadata in the cache
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of entries evicted because the cache is full
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Number of times the cache, or some entities in it, are invalidated
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
 
-        return md;
+    /**
+     * Number of cached entity versions
+     */
+    public int getSize() {
+        return cache.size();
     }
 
-    public synchronized void put(EntityMetadata md) {
-        cache.put(new EntityVersion(md.getName(), md.getVersion().getValue()), new WeakReference(md));
+    /**
+     * Increments the collection version and the version stamp of the
+     * entity in db, and invalidates the entity
+     */
+    public void updateEntityVersion(DBCollection collection, String entityName) {
+        if (entityName.indexOf('.') >= 0 || entityName.startsWith("$")) {
+            // Cannot be used as a field name
+            updateCollectionVersion(collection);
+            return;
+        }
+        BasicDBObject query = new BasicDBObject(MongoMetadata.LITERAL_ID, LITERAL_COLL_VER);
+        BasicDBObject update = new BasicDBObject("$inc", new BasicDBObject(LITERAL_COLL_VER, 1l).
+                                                 append(LITERAL_ENTITY_VERSIONS + "." + entityName, 1l));
+        try {
+            collection.update(query, update, true, false);
+        } catch (DuplicateKeyException e) {
+            // Concurrent upsert created the document
+            collection.update(query, update);
+        } catch (Exception e) {
+            LOGGER.error("Cannot update version of {}: {}", entityName, e);
+            updateCollectionVersion(collection);
+            return;
+        }
+        invalidate(Collections.singleton(entityName));
     }
 
     /**
@@ -126,13 +513,13 @@ public class MetadataCache {
             } catch (Exception e) {
             }
         }
-        cache.clear();
+        clear();
     }
 
     /**
-     * Load the cache version from the db.
+     * Load the collectionVersion document from the db.
      */
-    private synchronized Long loadCacheVersion(DBCollection collection) {
+    private synchronized DBObject loadCacheVersion(DBCollection collection) {
         BasicDBObject query = new BasicDBObject("_id", "collectionVersion");
         DBObject obj = collection.findOne(query);
         if (obj == null) {
@@ -143,18 +530,24 @@ public class MetadataCache {
                 LOGGER.error("Cannot initialize metadata cache");
             }
         }
-        if (obj != null) {
-            return (Long) obj.get("collectionVersion");
-        } else {
-            return null;
+        return obj;
+    }
+
+    private static Map<String, Long> getEntityVersions(DBObject versionDoc) {
+        Map<String, Long> map = new HashMap<>();
+        DBObject versions = (DBObject) versionDoc.get(LITERAL_ENTITY_VERSIONS);
+        if (versions != null) {
+            for (String name : versions.keySet()) {
+                map.put(name, ((Number) versions.get(name)).longValue());
+            }
         }
+        return map;
     }
 
     private synchronized void fullRefresh(DBCollection collection, long now) {
         if (lastCacheRefreshTime + cacheTTLMsecs < now) {
-            if (!refreshCollectionVersion(collection, now, true)) {
-                cache.clear();
-            }
+            // Expired entries are not returned, so only recheck the version
+            refreshCollectionVersion(collection, now, true);
             lastCacheRefreshTime = now;
         }
     }
@@ -168,11 +561,27 @@ public class MetadataCache {
         // other threads might have already initialized it
         boolean ret = false;
         if (bypassRecheck || lastVersionLookupTime + versionLookupPeriodMsecs < now) {
-            Long v = loadCacheVersion(collection);
-            if (v != null) {
+            DBObject versionDoc = loadCacheVersion(collection);
+            if (versionDoc != null) {
+                long v = ((Number) versionDoc.get(LITERAL_COLL_VER)).longValue();
                 if (v != expectedCollectionVersion) {
-                    cache.clear();
+                    Map<String, Long> entityVersions = getEntityVersions(versionDoc);
+                    Set<String> changed = new HashSet<>();
+                    long stampChanges = 0;
+                    for (Map.Entry<String, Long> entry : entityVersions.entrySet()) {
+                        long old = expectedEntityVersions.getOrDefault(entry.getKey(), 0l);
+                        if (entry.getValue() != old) {
+                            changed.add(entry.getKey());
+                            stampChanges += entry.getValue() - old;
+                        }
+                    }
+                    if (stampChanges == v - expectedCollectionVersion && stampChanges > 0) {
+                        invalidate(changed);
+                    } else {
+                        clear();
+                    }
                     expectedCollectionVersion = v;
+                    expectedEntityVersions = entityVersions;
                     ret = true;
                 }
                 lastVersionLookupTime = now;
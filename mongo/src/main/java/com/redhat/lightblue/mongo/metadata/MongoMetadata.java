@@ -26,6 +26,9 @@ import com.redhat.lightblue.DataError;
 import com.redhat.lightblue.OperationStatus;
 import com.redhat.lightblue.Response;
 import com.redhat.lightblue.mongo.common.MongoDataStore;
+import com.redhat.lightblue.mongo.common.Warmup;
+import com.redhat.lightblue.mongo.common.WarmupRegistry;
+import com.redhat.lightblue.crud.CRUDController;
 import com.redhat.lightblue.crud.Factory;
 import com.redhat.lightblue.metadata.*;
 import com.redhat.lightblue.metadata.parser.Extensions;
@@ -85,14 +88,25 @@ public class MongoMetadata extends AbstractMetadata {
 
         Error.push("getEntityMetadata(" + entityName + ":" + version + ")");
         try {
-            EntityMetadata md;
             if (cache != null) {
-                md = cache.lookup(collection, entityName, version);
-                if (md != null) {
-                    return md;
-                }
+                return cache.get(collection, entityName, version, () -> loadEntityMetadata(entityName, version));
+            } else {
+                return loadEntityMetadata(entityName, version);
             }
+        } catch (Error | IllegalArgumentException e) {
+            throw e;
+        } catch (Exception e) {
+            throw analyzeException(e, MetadataConstants.ERR_ILL_FORMED_METADATA);
+        } finally {
+            Error.pop();
+        }
+    }
 
+    /**
+     * Reads the entity info and the schema from the db
+     */
+    private EntityMetadata loadEntityMetadata(String entityName, String version) {
+        try {
             EntityInfo info = getEntityInfo(entityName);
             if (info != null) {
                 if (version == null || version.length() == 0) {
@@ -114,18 +128,12 @@ public class MongoMetadata extends AbstractMetadata {
             } else {
                 throw Error.get(MongoMetadataConstants.ERR_UNKNOWN_VERSION, entityName + ":" + version);
             }
-            md = new EntityMetadata(info, schema);
-            if (cache != null) {
-                cache.put(md);
-            }
-            return md;
+            return new EntityMetadata(info, schema);
         } catch (Error | IllegalArgumentException e) {
             // rethrow lightblue error or IllegalArgumentException
             throw e;
         } catch (Exception e) {
             throw analyzeException(e, MetadataConstants.ERR_ILL_FORMED_METADATA);
-        } finally {
-            Error.pop();
         }
     }
 
@@ -137,13 +145,11 @@ public class MongoMetadata extends AbstractMetadata {
 
         Error.push("getEntityInfo(" + entityName + ")");
         try {
-            BasicDBObject query = new BasicDBObject(LITERAL_ID, entityName + BSONParser.DELIMITER_ID);
-            DBObject ei = collection.findOne(query);
-            if (ei != null) {
-                return mdParser.parseEntityInfo(ei);
-            } else {
-                return null;
-            }
+            // The cache keeps the document, every caller gets its own entity info
+            DBObject ei = cache != null
+                ? cache.getEntityInfo(collection, entityName, () -> readEntityInfoDoc(entityName))
+                : readEntityInfoDoc(entityName);
+            return ei == null ? null : mdParser.parseEntityInfo(ei);
         } catch (Error e) {
             // rethrow lightblue error
             throw e;
@@ -154,7 +160,23 @@ public class MongoMetadata extends AbstractMetadata {
         }
     }
 
-    @SuppressWarnings("rawtypes")
+    /**
+     * Reads the entity info from the db
+     */
+    private EntityInfo readEntityInfo(String entityName) {
+        DBObject ei = readEntityInfoDoc(entityName);
+        if (ei != null) {
+            return mdParser.parseEntityInfo(ei);
+        } else {
+            return null;
+        }
+    }
+
+    private DBObject readEntityInfoDoc(String entityName) {
+        BasicDBObject query = new BasicDBObject(LITERAL_ID, entityName + BSONParser.DELIMITER_ID);
+        return collection.findOne(query);
+    }
+
     @Override
     public String[] getEntityNames(MetadataStatus... statuses) {
         LOGGER.debug("getEntityNames({})", statuses);
@@ -166,32 +188,10 @@ public class MongoMetadata extends AbstractMetadata {
             }
         }
         try {
-            if (statusSet.isEmpty()
-                    || (statusSet.contains(MetadataStatus.ACTIVE)
-                    && statusSet.contains(MetadataStatus.DEPRECATED)
-                    && statusSet.contains(MetadataStatus.DISABLED))) {
-                List l = collection.distinct(LITERAL_NAME, new BasicDBObject(LITERAL_NAME,
-                        new BasicDBObject("$exists", 1)));
-                String[] arr = new String[l.size()];
-                int i = 0;
-                for (Object x : l) {
-                    arr[i++] = x.toString();
-                }
-                return arr;
+            if (cache != null) {
+                return cache.getEntityNames(collection, statusSet, () -> readEntityNames(statusSet));
             } else {
-                LOGGER.debug("Requested statuses:{}", statusSet);
-                List<String> list = new ArrayList<>(statusSet.size());
-                for (MetadataStatus x : statusSet) {
-                    list.add(MetadataParser.toString(x));
-                }
-                BasicDBObject query = new BasicDBObject(LITERAL_STATUS_VALUE, new BasicDBObject("$in", list));
-                List l = collection.distinct(LITERAL_NAME, query);
-                String[] arr = new String[l.size()];
-                int i = 0;
-                for (Object x : l) {
-                    arr[i++] = x.toString();
-                }
-                return arr;
+                return readEntityNames(statusSet);
             }
         } catch (Error e) {
             // rethrow lightblue error
@@ -203,56 +203,134 @@ public class MongoMetadata extends AbstractMetadata {
         }
     }
 
+    /**
+     * Reads the names of the entities with the given statuses from the db
+     */
+    @SuppressWarnings("rawtypes")
+    private String[] readEntityNames(Set<MetadataStatus> statusSet) {
+        if (statusSet.isEmpty()
+                || (statusSet.contains(MetadataStatus.ACTIVE)
+                && statusSet.contains(MetadataStatus.DEPRECATED)
+                && statusSet.contains(MetadataStatus.DISABLED))) {
+            List l = collection.distinct(LITERAL_NAME, new BasicDBObject(LITERAL_NAME,
+                    new BasicDBObject("$exists", 1)));
+            String[] arr = new String[l.size()];
+            int i = 0;
+            for (Object x : l) {
+                arr[i++] = x.toString();
+            }
+            return arr;
+        } else {
+            LOGGER.debug("Requested statuses:{}", statusSet);
+            List<String> list = new ArrayList<>(statusSet.size());
+            for (MetadataStatus x : statusSet) {
+                list.add(MetadataParser.toString(x));
+            }
+            BasicDBObject query = new BasicDBObject(LITERAL_STATUS_VALUE, new BasicDBObject("$in", list));
+            List l = collection.distinct(LITERAL_NAME, query);
+            String[] arr = new String[l.size()];
+            int i = 0;
+            for (Object x : l) {
+                arr[i++] = x.toString();
+            }
+            return arr;
+        }
+    }
+
     @Override
     public VersionInfo[] getEntityVersions(String entityName) {
         if (entityName == null || entityName.length() == 0) {
             throw new IllegalArgumentException(LITERAL_ENTITY_NAME);
         }
         Error.push("getEntityVersions(" + entityName + ")");
-        DBCursor cursor = null;
         try {
-            // Get the default version
-            BasicDBObject query = new BasicDBObject(LITERAL_ID, entityName + BSONParser.DELIMITER_ID);
-            DBObject ei = collection.findOne(query);
-            String defaultVersion = ei == null ? null : (String) ei.get("defaultVersion");
-
-            // query by name but only return documents that have a version
-            query = new BasicDBObject(LITERAL_NAME, entityName)
-                    .append(LITERAL_VERSION, new BasicDBObject("$exists", 1));
-            DBObject project = new BasicDBObject(LITERAL_VERSION, 1).
-                    append(LITERAL_STATUS, 1).
-                    append(LITERAL_ID, 0);
-            cursor = collection.find(query, project);
-            int n = cursor.count();
-            VersionInfo[] ret = new VersionInfo[n];
-            int i = 0;
-            while (cursor.hasNext()) {
-                DBObject object = cursor.next();
-                ret[i] = new VersionInfo();
-                Version v = mdParser.parseVersion((BSONObject) object.get(LITERAL_VERSION));
-                ret[i].setValue(v.getValue());
-                ret[i].setExtendsVersions(v.getExtendsVersions());
-                ret[i].setChangelog(v.getChangelog());
-                ret[i].setStatus(MetadataParser.statusFromString((String) ((DBObject) object.get(LITERAL_STATUS)).get("value")));
-                if (defaultVersion != null && defaultVersion.equals(ret[i].getValue())) {
-                    ret[i].setDefault(true);
-                }
-                i++;
-            }
-            return ret;
+            // The cache keeps the documents, every caller gets its own version infos
+            List<DBObject> versions = cache != null
+                ? cache.getEntityVersions(collection, entityName, () -> readEntityVersionDocs(entityName))
+                : readEntityVersionDocs(entityName);
+            return toVersionInfos(entityName, versions);
         } catch (Error e) {
             // rethrow lightblue error
             throw e;
         } catch (Exception e) {
             throw analyzeException(e, MetadataConstants.ERR_ILL_FORMED_METADATA);
         } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
             Error.pop();
         }
     }
 
+    /**
+     * Reads the version and status of the versions of the entity from
+     * the db
+     */
+    private List<DBObject> readEntityVersionDocs(String entityName) {
+        // query by name but only return documents that have a version
+        BasicDBObject query = new BasicDBObject(LITERAL_NAME, entityName)
+                .append(LITERAL_VERSION, new BasicDBObject("$exists", 1));
+        DBObject project = new BasicDBObject(LITERAL_VERSION, 1).
+                append(LITERAL_STATUS, 1).
+                append(LITERAL_ID, 0);
+        List<DBObject> list = new ArrayList<>();
+        try (DBCursor cursor = collection.find(query, project)) {
+            while (cursor.hasNext()) {
+                list.add(cursor.next());
+            }
+        }
+        return list;
+    }
+
+    private VersionInfo[] toVersionInfos(String entityName, List<DBObject> versions) {
+        EntityInfo info = getEntityInfo(entityName);
+        String defaultVersion = info == null ? null : info.getDefaultVersion();
+        List<VersionInfo> list = new ArrayList<>(versions.size());
+        for (DBObject object : versions) {
+            VersionInfo vi = new VersionInfo();
+            Version v = mdParser.parseVersion((BSONObject) object.get(LITERAL_VERSION));
+            vi.setValue(v.getValue());
+            vi.setExtendsVersions(v.getExtendsVersions());
+            vi.setChangelog(v.getChangelog());
+            vi.setStatus(MetadataParser.statusFromString((String) ((DBObject) object.get(LITERAL_STATUS)).get("value")));
+            if (defaultVersion != null && defaultVersion.equals(vi.getValue())) {
+                vi.setDefault(true);
+            }
+            list.add(vi);
+        }
+        return list.toArray(new VersionInfo[list.size()]);
+    }
+
+    /**
+     * Loads and parses the metadata of all active entity versions, and
+     * lets the mongo controller initialize their resources in the
+     * background. The warm-up is registered with the mongo controller,
+     * so its health check reports whether the warm-up is finished.
+     */
+    public Warmup startWarmup(int parallelism, long budgetMsecs) {
+        Warmup warmup = new Warmup("metadata");
+        CRUDController controller = factory.getCRUDController(MongoDataStoreParser.NAME);
+        WarmupRegistry registry = controller instanceof WarmupRegistry ? (WarmupRegistry) controller : null;
+        if (registry != null) {
+            registry.addWarmup(warmup);
+        }
+        warmup.add("entities", () -> {
+            for (String name : getEntityNames(MetadataStatus.ACTIVE)) {
+                warmup.add("entity:" + name, () -> warmupEntity(name, registry));
+            }
+        });
+        warmup.start(parallelism, budgetMsecs);
+        return warmup;
+    }
+
+    private void warmupEntity(String entityName, WarmupRegistry registry) {
+        for (VersionInfo v : getEntityVersions(entityName)) {
+            if (v.getStatus() == MetadataStatus.ACTIVE) {
+                EntityMetadata md = getEntityMetadata(entityName, v.getValue());
+                if (registry != null) {
+                    registry.warmupEntity(md);
+                }
+            }
+        }
+    }
+
     @Override
     public void createNewMetadata(EntityMetadata md) {
         LOGGER.debug("createNewMetadata: begin");
@@ -311,7 +389,7 @@ public class MongoMetadata extends AbstractMetadata {
                     throw Error.get(MongoMetadataConstants.ERR_DUPLICATE_METADATA, ver.getValue());
                 }
                 if (cache != null) {
-                    cache.updateCollectionVersion(collection);
+                    cache.updateEntityVersion(collection, md.getName());
                 }
             } catch (Error e) {
                 // rethrow lightblue error
@@ -348,7 +426,7 @@ public class MongoMetadata extends AbstractMetadata {
         Error.push("updateEntityInfo(" + ei.getName() + ")");
         try {
             // Verify entity info exists
-            EntityInfo old = getEntityInfo(ei.getName());
+            EntityInfo old = readEntityInfo(ei.getName());
             if (null == old) {
                 throw Error.get(MongoMetadataConstants.ERR_MISSING_ENTITY_INFO, ei.getName());
             }
@@ -372,7 +450,7 @@ public class MongoMetadata extends AbstractMetadata {
                 throw analyzeException(e, MongoMetadataConstants.ERR_DB_ERROR);
             }
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.updateEntityVersion(collection, ei.getName());
             }
         } catch (Error e) {
             // rethrow lightblue error
@@ -436,7 +514,7 @@ public class MongoMetadata extends AbstractMetadata {
 
         try {
             // verify entity info exists
-            EntityInfo info = getEntityInfo(md.getName());
+            EntityInfo info = readEntityInfo(md.getName());
 
             if (null == info) {
                 throw Error.get(MongoMetadataConstants.ERR_MISSING_ENTITY_INFO, md.getName());
@@ -464,7 +542,7 @@ public class MongoMetadata extends AbstractMetadata {
                 listener.afterCreateNewSchema(this, md);
             }
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.updateEntityVersion(collection, md.getName());
             }
         } catch (DuplicateKeyException dke) {
             throw Error.get(MongoMetadataConstants.ERR_DUPLICATE_METADATA, ver.getValue());
@@ -518,7 +596,7 @@ public class MongoMetadata extends AbstractMetadata {
                 throw Error.get(MongoMetadataConstants.ERR_UNKNOWN_VERSION, entityName + ":" + version);
             }
 
-            EntityInfo info = getEntityInfo(entityName);
+            EntityInfo info = readEntityInfo(entityName);
             if (info.getDefaultVersion() != null && info.getDefaultVersion().contentEquals(version) && newStatus == MetadataStatus.DISABLED) {
                 throw Error.get(MongoMetadataConstants.ERR_DISABLED_DEFAULT_VERSION, entityName + ":" + version);
             }
@@ -536,7 +614,7 @@ public class MongoMetadata extends AbstractMetadata {
             query = new BasicDBObject(LITERAL_ID, md.get(LITERAL_ID));
             WriteResult result = collection.update(query, (DBObject) mdParser.convert(schema), false, false);
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.updateEntityVersion(collection, entityName);
             }
         } catch (Error e) {
             // rethrow lightblue error
@@ -572,7 +650,7 @@ public class MongoMetadata extends AbstractMetadata {
             WriteResult r = collection.remove(query);
             LOGGER.debug("Removal result:{}", r);
             if (cache != null) {
-                cache.updateCollectionVersion(collection);
+                cache.updateEntityVersion(collection, entityName);
             }
         } catch (Exception e) {
             LOGGER.error("Error during delete", e);
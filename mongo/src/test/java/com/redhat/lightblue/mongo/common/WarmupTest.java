@@ -0,0 +1,117 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.common;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class WarmupTest {
+
+    @Test
+    public void runTest() throws Exception {
+        Warmup warmup = new Warmup("test");
+        AtomicInteger n = new AtomicInteger();
+        // Both tasks must run at the same time to complete
+        CountDownLatch latch = new CountDownLatch(2);
+        Runnable task = () -> {
+            latch.countDown();
+            try {
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+            }
+            n.incrementAndGet();
+        };
+        warmup.add("t1", task);
+        warmup.add("t2", () -> {
+            task.run();
+            warmup.add("t3", n::incrementAndGet);
+        });
+        Assert.assertEquals(Warmup.State.NOT_STARTED, warmup.getState());
+        warmup.run(2, 10000);
+
+        Assert.assertEquals(Warmup.State.READY, warmup.getState());
+        Assert.assertTrue(warmup.isFinished());
+        Assert.assertEquals(3, n.get());
+        Assert.assertEquals(3, warmup.getDetails().get("numTasks"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void timeoutTest() throws Exception {
+        Warmup warmup = new Warmup("test");
+        warmup.add("ok", () -> {
+        });
+        warmup.add("fail", () -> {
+            throw new IllegalStateException();
+        });
+        warmup.add("slow", () -> {
+            try {
+                Thread.sleep(10000);
+            } catch (InterruptedException e) {
+            }
+        });
+        warmup.run(3, 100);
+
+        Assert.assertEquals(Warmup.State.INCOMPLETE, warmup.getState());
+        Map<String, String> notCompleted = (Map<String, String>) warmup.getDetails().get("notCompleted");
+        Assert.assertEquals(2, notCompleted.size());
+        Assert.assertEquals("timeout", notCompleted.get("slow"));
+        Assert.assertTrue(notCompleted.get("fail").contains("IllegalStateException"));
+    }
+
+    @Test
+    public void runningTasksAreNotInterrupted() throws Exception {
+        Warmup warmup = new Warmup("test");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger interrupted = new AtomicInteger();
+        AtomicInteger notStarted = new AtomicInteger();
+        warmup.add("running", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+            }
+            done.countDown();
+        });
+        warmup.add("queued", notStarted::incrementAndGet);
+        new Thread(() -> {
+            try {
+                started.await();
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+            }
+            release.countDown();
+        }).start();
+        warmup.run(1, 100);
+
+        Assert.assertEquals(Warmup.State.INCOMPLETE, warmup.getState());
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, interrupted.get());
+        Thread.sleep(100);
+        Assert.assertEquals(0, notStarted.get());
+    }
+}
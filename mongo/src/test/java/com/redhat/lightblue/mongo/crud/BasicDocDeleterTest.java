@@ -30,6 +30,8 @@ import com.mongodb.DBObject;
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
 import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.metadata.EntityMetadata;
 
 /**
@@ -121,4 +123,97 @@ public class BasicDocDeleterTest extends AbstractMongoCrudTest {
         // the batch is called twice
         Mockito.verify(spiedCollection, Mockito.times(2)).initializeUnorderedBulkOperation();
     }
+
+    @Test
+    public void deleteByIdSetMultiBatch() {
+        int docsToInsertCount = batchSize+2;
+        for (int i=0;i<docsToInsertCount;i++) {
+            DBObject obj = new BasicDBObject();
+            obj.put("_id", "deleteTest1-"+i);
+            obj.put("objectType", "test");
+            coll.insert(obj);
+        }
+
+        BasicDocDeleter deleter = new BasicDocDeleter(translator, null, batchSize);
+        deleter.hookOptimization=false;
+        deleter.setDeleteByIdSet(true);
+        CRUDDeleteResponse response = new CRUDDeleteResponse();
+        deleter.delete(ctx, spiedCollection, new BasicDBObject("objectType", "test"), response);
+
+        Assert.assertEquals("num deleted", docsToInsertCount, response.getNumDeleted());
+        Assert.assertEquals("count on collection", 0, coll.find(null).count());
+
+        // One remove for each batch, no verification
+        Mockito.verify(spiedCollection, Mockito.times(2)).remove(Mockito.any(DBObject.class));
+        Mockito.verify(spiedCollection, Mockito.never()).initializeUnorderedBulkOperation();
+        Mockito.verify(spiedCollection, Mockito.never()).find(Mockito.any(DBObject.class), Mockito.any(DBObject.class));
+    }
+
+    @Test
+    public void deleteByIdSetConcurrentDelete() {
+        for (int i=0;i<3;i++) {
+            DBObject obj = new BasicDBObject();
+            obj.put("_id", "deleteTest1-"+i);
+            obj.put("objectType", "test");
+            coll.insert(obj);
+        }
+        // Someone else deletes a document before the batch is deleted
+        Mockito.doAnswer(invocation -> {
+            coll.remove(new BasicDBObject("_id", "deleteTest1-1"));
+            return invocation.callRealMethod();
+        }).when(spiedCollection).remove(Mockito.any(DBObject.class));
+
+        BasicDocDeleter deleter = new BasicDocDeleter(translator, null, batchSize);
+        deleter.hookOptimization=false;
+        deleter.setDeleteByIdSet(true);
+        CRUDDeleteResponse response = new CRUDDeleteResponse();
+        deleter.delete(ctx, spiedCollection, new BasicDBObject("objectType", "test"), response);
+
+        Assert.assertEquals("num deleted", 2, response.getNumDeleted());
+        Assert.assertEquals("count on collection", 0, coll.find(null).count());
+        // The count mismatch is verified with one query
+        Mockito.verify(spiedCollection, Mockito.times(1)).find(Mockito.any(DBObject.class), Mockito.any(DBObject.class));
+        // A document deleted by someone else is not an error
+        DocumentStream<DocCtx> docs = ctx.getDocumentStream();
+        while (docs.hasNext()) {
+            Assert.assertFalse(docs.next().hasErrors());
+        }
+    }
+
+    @Test
+    public void deleteHookFieldsWithHookBatching() {
+        EntityMetadata md = getMd("./testMetadata_deleteHook.json");
+        int docsToInsertCount = batchSize+2;
+        for (int i=0;i<docsToInsertCount;i++) {
+            DBObject obj = new BasicDBObject();
+            obj.put("_id", "deleteTest1-"+i);
+            obj.put("objectType", "test");
+            obj.put("code", "code"+i);
+            obj.put("field1", "value"+i);
+            obj.put("field2", "value"+i);
+            coll.insert(obj);
+        }
+
+        // The hook projects field1, _id, objectType and the identity are always included
+        DBObject fields = new MongoCRUDController(null, null).
+            getDeleteHookFields(new ExpressionTranslator(ctx, nodeFactory), md);
+        Assert.assertTrue(fields.containsField("field1"));
+        Assert.assertTrue(fields.containsField("_id"));
+        Assert.assertTrue(fields.containsField("objectType"));
+        Assert.assertTrue(fields.containsField("code"));
+        Assert.assertFalse(fields.containsField("field2"));
+
+        BasicDocDeleter deleter = new BasicDocDeleter(translator, null, batchSize);
+        deleter.hookOptimization=false;
+        deleter.setFields(fields);
+        deleter.setHookBatching(true);
+        CRUDDeleteResponse response = new CRUDDeleteResponse();
+        deleter.delete(ctx, spiedCollection, new BasicDBObject("objectType", "test"), response);
+
+        Assert.assertEquals("num deleted", docsToInsertCount, response.getNumDeleted());
+        Assert.assertEquals("count on collection", 0, coll.find(null).count());
+        Mockito.verify(spiedCollection, Mockito.times(1)).find(Mockito.any(DBObject.class), Mockito.eq(fields));
+        // Hooks are called for each batch, only docs with errors are kept
+        Assert.assertFalse(ctx.getDocumentStream().hasNext());
+    }
 }
@@ -22,23 +22,28 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.github.fge.jsonschema.core.exceptions.ProcessingException;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.WriteResult;
+import com.redhat.lightblue.config.ControllerConfiguration;
 import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.DocumentStream;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.Path;
 import com.redhat.lightblue.util.JsonUtils;
 
@@ -600,4 +605,136 @@ public class BasicDocFinderTest extends AbstractMongoCrudTest {
         Assert.assertEquals(id + "2", documents.get(0).getOutputDocument().get(new Path("_id")).asText());
         Assert.assertEquals(id + "3", documents.get(1).getOutputDocument().get(new Path("_id")).asText());
     }
+
+    @Test
+    public void findSeekPaging() throws IOException, ProcessingException {
+        String id = "findSeekPaging";
+        for (int i = 0; i < 10; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\",\"field1\":\"%s\"}", new String[]{id + i, "v" + (i % 3)});
+        }
+
+        DBObject sort = new BasicDBObject("field1", -1);
+        List<String> seen = new ArrayList<>();
+        String token = null;
+        for (int page = 0; page < 5; page++) {
+            ctx = new TestCRUDOperationContext(CRUDOperation.FIND);
+            ctx.add(getMd("./testMetadata.json"));
+            BasicDocFinder finder = new BasicDocFinder(translator, null);
+            finder.setSeekPaging(true, token);
+            long count = finder.find(ctx, coll, null, null, sort, 0l, 2l);
+            Assert.assertEquals("find count", 10, count);
+            List<DocCtx> documents = streamToList(ctx);
+            for (DocCtx doc : documents) {
+                seen.add(doc.getOutputDocument().get(new Path("field1")).asText() + ":"
+                        + doc.getOutputDocument().get(new Path("_id")).asText());
+            }
+            token = (String) ctx.getProperty(MongoCRUDController.PROP_CONTINUATION_TOKEN);
+            if (documents.size() < 3) {
+                break;
+            }
+        }
+        Assert.assertEquals(10, seen.size());
+        List<String> expected = new ArrayList<>(seen);
+        expected.sort((a, b) -> {
+            String[] x = a.split(":");
+            String[] y = b.split(":");
+            int c = y[0].compareTo(x[0]);
+            return c == 0 ? x[1].compareTo(y[1]) : c;
+        });
+        Assert.assertEquals(expected, seen);
+    }
+
+    @Test(expected = com.redhat.lightblue.util.Error.class)
+    public void findSeekPagingInvalidToken() throws IOException, ProcessingException {
+        BasicDocFinder finder = new BasicDocFinder(translator, null);
+        finder.setSeekPaging(true, "not-a-token");
+        finder.find(ctx, coll, null, null, new BasicDBObject("field1", 1), 0l, 2l);
+    }
+
+    @Test
+    public void findPrefetch() throws IOException, ProcessingException {
+        String id = "findPrefetch";
+        for (int i = 0; i < 20; i++) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\",\"field1\":\"%s\"}", new String[]{id + i, String.format("v%02d", i)});
+        }
+
+        StreamPrefetchCfg prefetch = new StreamPrefetchCfg(null);
+        prefetch.setEnabled(true);
+        prefetch.setBatchSize(3);
+        prefetch.setQueueDepth(2);
+        BasicDocFinder finder = new BasicDocFinder(translator, null);
+        finder.setPrefetch(prefetch);
+        finder.find(ctx, coll, null, null, new BasicDBObject("field1", 1), null, null);
+        List<DocCtx> documents = streamToList(ctx);
+        Assert.assertEquals(20, documents.size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(String.format("v%02d", i), documents.get(i).getOutputDocument().get(new Path("field1")).asText());
+        }
+    }
+
+    @Test
+    public void prefetchCfgNotAnObject() {
+        ObjectNode options = JsonNodeFactory.instance.objectNode();
+        options.put("prefetch", true);
+        ControllerConfiguration controllerCfg = new ControllerConfiguration();
+        controllerCfg.setOptions(options);
+        try {
+            new StreamPrefetchCfg(controllerCfg);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_CONFIGURATION_ERROR, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void prefetchPoolsShutdown() {
+        StreamPrefetchCfg prefetch = new StreamPrefetchCfg(null);
+        ExecutorService pool = prefetch.getWorkerPool();
+        prefetch.shutdown();
+        Assert.assertTrue(pool.isShutdown());
+        Assert.assertNotSame(pool, prefetch.getWorkerPool());
+        prefetch.shutdown();
+    }
+
+    @Test
+    public void findRawBson() throws IOException, ProcessingException {
+        coll.insert(BasicDBObject.parse("{'_id':'findRawBson1','objectType':'test','field1':'a','field3':3,"
+                + "'field6':{'nf1':'x','nf5':[1,2],'nf7':{'nnf2':5}},'field7':[{'elemf1':'e'},null]}"));
+        coll.insert(BasicDBObject.parse("{'_id':'findRawBson2','objectType':'test','field1':'b','field6':{'nf6':['s',{'x':1}]}}"));
+
+        DBObject sort = new BasicDBObject("_id", 1);
+        BasicDocFinder finder = new BasicDocFinder(translator, null);
+        finder.find(ctx, coll, null, null, sort, null, null);
+        List<DocCtx> expected = streamToList(ctx);
+
+        ctx = new TestCRUDOperationContext(CRUDOperation.FIND);
+        ctx.add(getMd("./testMetadata.json"));
+        finder = new BasicDocFinder(translator, null);
+        finder.setRawBson(true);
+        finder.find(ctx, coll, null, null, sort, null, null);
+        List<DocCtx> documents = streamToList(ctx);
+
+        Assert.assertEquals(2, documents.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getOutputDocument().getRoot(), documents.get(i).getOutputDocument().getRoot());
+        }
+    }
+
+    @Test
+    public void findFacetCount() throws IOException, ProcessingException {
+        String id = "findFacetCount";
+        for (int i = 5; i > 0; i--) {
+            insert("{\"_id\":\"%s\",\"objectType\":\"test\",\"field1\":\"%s\"}", new String[]{id + i, i % 2 == 0 ? "even" : "odd"});
+        }
+
+        BasicDocFinder finder = new BasicDocFinder(translator, null);
+        finder.setFacetCount(true);
+        long count = finder.find(ctx, coll, new BasicDBObject("field1", "odd"), null, new BasicDBObject("_id", 1), 1l, 5l);
+
+        List<DocCtx> documents = streamToList(ctx);
+        Assert.assertEquals("find count", 3, count);
+        Assert.assertEquals(2, documents.size());
+        Assert.assertEquals(id + "3", documents.get(0).getOutputDocument().get(new Path("_id")).asText());
+        Assert.assertEquals(id + "5", documents.get(1).getOutputDocument().get(new Path("_id")).asText());
+    }
 }
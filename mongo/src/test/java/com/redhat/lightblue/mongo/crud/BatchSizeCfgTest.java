@@ -0,0 +1,134 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.BasicDBObject;
+import com.redhat.lightblue.config.ControllerConfiguration;
+
+public class BatchSizeCfgTest {
+
+    private static final JsonNodeFactory jnf = JsonNodeFactory.instance;
+
+    private BatchSizeCfg cfg() {
+        ObjectNode batching = jnf.objectNode();
+        batching.put("adaptive", true);
+        batching.put("minDocs", 10);
+        batching.put("maxDocs", 1000);
+        batching.put("maxBytes", 10000);
+        batching.put("targetCommitMs", 100);
+        ObjectNode entity = jnf.objectNode();
+        entity.put("maxDocs", 20);
+        ObjectNode entities = jnf.objectNode();
+        entities.set("small", entity);
+        batching.set("entities", entities);
+        ObjectNode options = jnf.objectNode();
+        options.set("batching", batching);
+        ControllerConfiguration controllerCfg = new ControllerConfiguration();
+        controllerCfg.setOptions(options);
+        return new BatchSizeCfg(controllerCfg);
+    }
+
+    @Test
+    public void fixedBatchSize() {
+        AdaptiveBatcher batcher = new BatchSizeCfg(null).getBatcher("e", "update", 3);
+        batcher.add(new BasicDBObject("x", new String(new char[100000])));
+        Assert.assertFalse(batcher.isFull());
+        batcher.add(1);
+        batcher.add(1);
+        Assert.assertTrue(batcher.isFull());
+        batcher.committed(3, 1000000000l);
+        Assert.assertEquals(3, batcher.getTarget());
+    }
+
+    @Test
+    public void fixedBatchSizeUsesLimits() {
+        ObjectNode batching = jnf.objectNode();
+        batching.put("adaptive", false);
+        batching.put("maxBytes", 10000);
+        ObjectNode entity = jnf.objectNode();
+        entity.put("maxDocs", 5);
+        entity.put("maxBytes", 100000);
+        ObjectNode entities = jnf.objectNode();
+        entities.set("small", entity);
+        batching.set("entities", entities);
+        ObjectNode options = jnf.objectNode();
+        options.set("batching", batching);
+        ControllerConfiguration controllerCfg = new ControllerConfiguration();
+        controllerCfg.setOptions(options);
+        BatchSizeCfg cfg = new BatchSizeCfg(controllerCfg);
+
+        AdaptiveBatcher batcher = cfg.getBatcher("e", "update", 64);
+        Assert.assertEquals(64, batcher.getTarget());
+        batcher.add(new BasicDBObject("x", new String(new char[6000])));
+        Assert.assertFalse(batcher.isFull());
+        batcher.add(new BasicDBObject("x", new String(new char[6000])));
+        Assert.assertTrue(batcher.isFull());
+
+        batcher = cfg.getBatcher("small", "update", 64);
+        Assert.assertEquals(5, batcher.getTarget());
+        batcher.add(new BasicDBObject("x", new String(new char[6000])));
+        batcher.add(new BasicDBObject("x", new String(new char[6000])));
+        Assert.assertFalse(batcher.isFull());
+        batcher.committed(2, 1000000000l);
+        Assert.assertEquals(5, batcher.getTarget());
+    }
+
+    @Test
+    public void batchIsFullAtMaxBytes() {
+        AdaptiveBatcher batcher = cfg().getBatcher("e", "update", 64);
+        batcher.add(new BasicDBObject("x", new String(new char[6000])));
+        Assert.assertFalse(batcher.isFull());
+        batcher.add(new BasicDBObject("x", new String(new char[6000])));
+        Assert.assertTrue(batcher.isFull());
+        batcher.reset();
+        Assert.assertFalse(batcher.isFull());
+    }
+
+    @Test
+    public void targetFollowsCommitLatency() {
+        BatchSizeCfg cfg = cfg();
+        AdaptiveBatcher batcher = cfg.getBatcher("e", "update", 64);
+        // 64 docs in 10ms, 640 docs fit in 100ms
+        for (int i = 0; i < 10; i++) {
+            batcher.committed(64, 10000000l);
+        }
+        Assert.assertTrue(batcher.getTarget() > 500);
+        // The learned size is kept for the entity and the operation
+        Assert.assertEquals(batcher.getTarget(), cfg.getBatcher("e", "update", 64).getTarget());
+        Assert.assertEquals(64, cfg.getBatcher("e", "delete", 64).getTarget());
+        // Slow commits shrink the batch, but not below minDocs
+        for (int i = 0; i < 20; i++) {
+            batcher.committed(64, 10000000000l);
+        }
+        Assert.assertEquals(10, batcher.getTarget());
+    }
+
+    @Test
+    public void entityOverrides() {
+        AdaptiveBatcher batcher = cfg().getBatcher("small", "update", 64);
+        Assert.assertEquals(20, batcher.getTarget());
+        batcher.committed(20, 1000000l);
+        Assert.assertEquals(20, batcher.getTarget());
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ContentionStatsTest {
+
+    @Test
+    public void newContentionReplacesColdIds() {
+        ContentionStats stats = new ContentionStats();
+        for (int i = 0; i < ContentionStats.MAX_HOT_IDS; i++) {
+            stats.retried("c", i);
+        }
+        for (int i = 0; i < 3; i++) {
+            stats.retried("c", "new");
+        }
+        Map<String, Long> hot = stats.getHotIds(1);
+        Assert.assertEquals(Long.valueOf(3), hot.get("c:new"));
+        Assert.assertTrue(stats.getNumHotIds() <= ContentionStats.MAX_HOT_IDS);
+    }
+
+    @Test
+    public void hotIdsDecayWhenFull() {
+        ContentionStats stats = new ContentionStats();
+        for (int i = 0; i < ContentionStats.MAX_HOT_IDS; i++) {
+            for (int j = 0; j < 4; j++) {
+                stats.retried("c", i);
+            }
+        }
+        stats.retried("c", "new");
+        Assert.assertEquals(ContentionStats.MAX_HOT_IDS, stats.getNumHotIds());
+        Assert.assertEquals(Long.valueOf(1), stats.getHotIds(ContentionStats.MAX_HOT_IDS).get("c:new"));
+        Assert.assertEquals(Long.valueOf(2), stats.getHotIds(1).values().iterator().next());
+        Assert.assertEquals(4 * ContentionStats.MAX_HOT_IDS + 1, stats.getRetriedDocs());
+    }
+}
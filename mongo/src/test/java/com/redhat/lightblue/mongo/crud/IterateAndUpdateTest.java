@@ -3,7 +3,12 @@ package com.redhat.lightblue.mongo.crud;
 import static org.mockito.Mockito.mock;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 
 import org.bson.types.ObjectId;
 import org.junit.Assert;
@@ -20,12 +25,14 @@ import com.redhat.lightblue.crud.CRUDOperation;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.CRUDUpdateResponse;
 import com.redhat.lightblue.crud.ConstraintValidator;
+import com.redhat.lightblue.crud.DocCtx;
 import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
 import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.eval.Updater;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.query.UpdateExpression;
 import com.redhat.lightblue.util.JsonUtils;
+import com.redhat.lightblue.util.Path;
 
 /**
  * IterateAndUpdate backed by mongo.
@@ -109,6 +116,8 @@ public class IterateAndUpdateTest extends AbstractMongoCrudTest {
 
     TestIterateAndUpdate iterateAndUpdate;
 
+    Supplier<Updater> updaterFactory;
+
     @Before
     public void setup() throws Exception {
 
@@ -125,7 +134,7 @@ public class IterateAndUpdateTest extends AbstractMongoCrudTest {
             }
         };
 
-        Updater updater = Updater.getInstance(nodeFactory, md,
+        updaterFactory = () -> Updater.getInstance(nodeFactory, md,
                 UpdateExpression.fromJson(JsonUtils.json("{'$set': { 'field1': 'changed-by-iterate-and-update'}}".replaceAll("'", "\""))));
 
         iterateAndUpdate = new TestIterateAndUpdate(
@@ -133,7 +142,7 @@ public class IterateAndUpdateTest extends AbstractMongoCrudTest {
                 mock(ConstraintValidator.class),
                 new FieldAccessRoleEvaluator(md, Collections.emptySet()),
                 new DocTranslator(ctx, nodeFactory),
-                updater, null, Projector.getInstance(MongoCRUDController.ID_PROJECTION, md), WriteConcern.ACKNOWLEDGED, 3,
+                updaterFactory.get(), null, Projector.getInstance(MongoCRUDController.ID_PROJECTION, md), WriteConcern.ACKNOWLEDGED, 3,
                 new DefaultConcurrentModificationDetectionCfg());
     }
 
@@ -207,4 +216,57 @@ public class IterateAndUpdateTest extends AbstractMongoCrudTest {
         Assert.assertEquals("Out of 5 processed docs, only 1 should have been updated due to concurrent update", 1, docsUpdatedByIterateAndUpdate);
     }
 
+    @Test
+    public void pipelinedUpdate() throws Exception {
+        DBCollection collection = db.getCollection(COLL_NAME);
+        for (int i = 0; i < 8; i++) {
+            collection.insert(new BasicDBObject("field1", "initialValue").append("objectType", "test"));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            iterateAndUpdate.setPipelining(pool, 2, updaterFactory);
+            // batch size is 3, 3 batches
+            iterateAndUpdate.attemptToPersistUpdatedBatch(3);
+            CRUDUpdateResponse response = new CRUDUpdateResponse();
+            iterateAndUpdate.update(ctx, collection, md, response, new BasicDBObject("field1", "initialValue"));
+
+            Assert.assertEquals(0, response.getNumFailed());
+            Assert.assertEquals(8, response.getNumMatched());
+            Assert.assertEquals(8, response.getNumUpdated());
+            Assert.assertEquals(8, ctx.getInputDocuments().size());
+            Assert.assertEquals(8, collection.count(new BasicDBObject("field1", "changed-by-iterate-and-update")));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelUpdate() throws Exception {
+        DBCollection collection = db.getCollection(COLL_NAME);
+        for (int i = 0; i < 8; i++) {
+            collection.insert(new BasicDBObject("_id", "doc" + i).append("field1", "initialValue").append("objectType", "test"));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            iterateAndUpdate.setParallelism(pool, () -> mock(ConstraintValidator.class), updaterFactory);
+            iterateAndUpdate.attemptToPersistUpdatedBatch(3);
+            CRUDUpdateResponse response = new CRUDUpdateResponse();
+            iterateAndUpdate.update(ctx, collection, md, response, new BasicDBObject("field1", "initialValue"));
+
+            Assert.assertEquals(0, response.getNumFailed());
+            Assert.assertEquals(8, response.getNumMatched());
+            Assert.assertEquals(8, response.getNumUpdated());
+            Assert.assertEquals(8, collection.count(new BasicDBObject("field1", "changed-by-iterate-and-update")));
+            // Documents are returned in the order they are read
+            List<DocCtx> docs = ctx.getInputDocuments();
+            Assert.assertEquals(8, docs.size());
+            for (int i = 0; i < 8; i++) {
+                Assert.assertEquals("doc" + i, docs.get(i).get(new Path("_id")).asText());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
 }
@@ -74,6 +74,7 @@ import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.JsonUtils;
 import com.redhat.lightblue.util.Path;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.net.UnknownHostException;
@@ -961,6 +962,195 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
     Assert.assertEquals(documents.size(), saveResponse.getNumSaved());
   }
 
+  @Test
+  public void saveManyTest() throws Exception {
+    EntityMetadata md = getMd("./testMetadata.json");
+    TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    for (int i = 0; i < 10; i++) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'save" + i + "','objectType':'test','field1':'value" + i + "'}")));
+    }
+    controller.insert(ctx, projection("{'field':'_id'}"));
+
+    // Save the existing docs in reverse order, and 5 new docs
+    ctx = new TestCRUDOperationContext(CRUDOperation.SAVE);
+    ctx.add(md);
+    for (int i = 14; i >= 0; i--) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'save" + i + "','objectType':'test','field1':'saved" + i + "'}")));
+    }
+    CRUDSaveResponse saveResponse = controller.save(ctx, true, projection("{'field':'_id'}"));
+    Assert.assertEquals(15, saveResponse.getNumSaved());
+    Assert.assertEquals(15, coll.count());
+    for (int i = 0; i < 15; i++) {
+      Assert.assertEquals("saved" + i, coll.findOne(new BasicDBObject("_id", "save" + i)).get("field1"));
+    }
+  }
+
+  @Test
+  public void pipelinedSaveTest() throws Exception {
+    ControllerConfiguration cfg = new ControllerConfiguration();
+    cfg.setOptions((ObjectNode) json("{'savePipelining': true, 'updateBatchSize': 4}"));
+    MongoCRUDController pipelinedController = new MongoCRUDController(cfg, dbResolver);
+
+    EntityMetadata md = getMd("./testMetadata.json");
+    TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    for (int i = 0; i < 10; i++) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'save" + i + "','objectType':'test','field1':'value" + i + "'}")));
+    }
+    pipelinedController.insert(ctx, projection("{'field':'_id'}"));
+
+    // save10 is inserted by the first batch, and updated by the second batch
+    ctx = new TestCRUDOperationContext(CRUDOperation.SAVE);
+    ctx.add(md);
+    int[] ids = {0, 1, 2, 10, 10, 3, 4, 5, 6};
+    for (int i = 0; i < ids.length; i++) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'save" + ids[i] + "','objectType':'test','field1':'saved" + i + "'}")));
+    }
+    CRUDSaveResponse saveResponse = pipelinedController.save(ctx, true, projection("{'field':'_id'}"));
+    Assert.assertEquals(ids.length, saveResponse.getNumSaved());
+    Assert.assertEquals(11, coll.count());
+    Assert.assertEquals("saved4", coll.findOne(new BasicDBObject("_id", "save10")).get("field1"));
+    Assert.assertEquals("saved8", coll.findOne(new BasicDBObject("_id", "save6")).get("field1"));
+    Assert.assertEquals("value7", coll.findOne(new BasicDBObject("_id", "save7")).get("field1"));
+  }
+
+  @Test
+  public void lightweightSaveResultTest() throws Exception {
+    ControllerConfiguration cfg = new ControllerConfiguration();
+    cfg.setOptions((ObjectNode) json("{'lightweightSaveResult': true}"));
+    MongoCRUDController lightweightController = new MongoCRUDController(cfg, dbResolver);
+
+    EntityMetadata md = getMd("./testMetadata.json");
+    TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    JsonDoc doc = new JsonDoc(loadJsonNode("./testdata1.json"));
+    addDocument(ctx, doc);
+    CRUDInsertionResponse response = lightweightController.insert(ctx, projection("{'field':'field1'}"));
+    Assert.assertEquals(1, response.getNumInserted());
+    List<DocCtx> documents = streamToList(ctx);
+    JsonDoc output = documents.get(0).getOutputDocument();
+    Assert.assertEquals(doc.get(new Path("field1")).asText(), output.get(new Path("field1")).asText());
+    Assert.assertNull(output.get(new Path("field3")));
+    Assert.assertNotNull(documents.get(0).getResultMetadata().getDocumentVersion());
+
+    // No projection: empty output, but the document version is returned
+    ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    addDocument(ctx, new JsonDoc(loadJsonNode("./testdata1.json")));
+    lightweightController.insert(ctx, null);
+    documents = streamToList(ctx);
+    Assert.assertEquals(0, documents.get(0).getOutputDocument().getRoot().size());
+    Assert.assertNotNull(documents.get(0).getResultMetadata().getDocumentVersion());
+    Assert.assertEquals(2, coll.count());
+  }
+
+  @Test
+  public void parallelTranslationTest() throws Exception {
+    ControllerConfiguration cfg = new ControllerConfiguration();
+    cfg.setOptions((ObjectNode) json("{'translationParallelism': 2, 'updateBatchSize': 4}"));
+    MongoCRUDController parallelController = new MongoCRUDController(cfg, dbResolver);
+
+    EntityMetadata md = getMd("./testMetadata.json");
+    TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    for (int i = 0; i < 21; i++) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'doc" + i + "','objectType':'test','field1':'value" + i + "'}")));
+    }
+    CRUDInsertionResponse response = parallelController.insert(ctx, projection("{'field':'_id'}"));
+    Assert.assertEquals(21, response.getNumInserted());
+    List<DocCtx> documents = streamToList(ctx);
+    for (int i = 0; i < 21; i++) {
+      Assert.assertEquals("doc" + i, documents.get(i).getOutputDocument().get(new Path("_id")).asText());
+    }
+
+    ctx = new TestCRUDOperationContext(CRUDOperation.SAVE);
+    ctx.add(md);
+    for (int i = 0; i < 21; i++) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'doc" + i + "','objectType':'test','field1':'saved" + i + "'}")));
+    }
+    CRUDSaveResponse saveResponse = parallelController.save(ctx, false, projection("{'field':'_id'}"));
+    Assert.assertEquals(21, saveResponse.getNumSaved());
+    Assert.assertEquals(21, coll.count());
+    for (int i = 0; i < 21; i++) {
+      Assert.assertEquals("saved" + i, coll.findOne(new BasicDBObject("_id", "doc" + i)).get("field1"));
+    }
+  }
+
+  @Test
+  public void singleRoundTripUpsertTest() throws Exception {
+    ControllerConfiguration cfg = new ControllerConfiguration();
+    cfg.setOptions((ObjectNode) json("{'singleRoundTripUpsert': true}"));
+    MongoCRUDController upsertController = new MongoCRUDController(cfg, dbResolver);
+
+    // No arrays of objects, so the single round trip is used
+    EntityMetadata md = getMd("./testMetadata_cap.json");
+    TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    for (int i = 0; i < 5; i++) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'save" + i + "','objectType':'test','field1':'value" + i + "'}")));
+    }
+    upsertController.insert(ctx, projection("{'field':'_id'}"));
+    // A field that is not in the metadata, and a field missing from the saved doc
+    coll.update(new BasicDBObject("_id", "save0"), new BasicDBObject("$set", new BasicDBObject("unknownField", "x").append("field2", "y")));
+
+    // save0-4 exist, save5-7 are new, and save7 is in the request twice
+    ctx = new TestCRUDOperationContext(CRUDOperation.SAVE);
+    ctx.add(md);
+    int[] ids = {0, 1, 2, 3, 4, 5, 6, 7, 7};
+    for (int i = 0; i < ids.length; i++) {
+      addDocument(ctx, new JsonDoc(json("{'_id':'save" + ids[i] + "','objectType':'test','field1':'saved" + ids[i] + "'}")));
+    }
+    CRUDSaveResponse saveResponse = upsertController.save(ctx, true, projection("{'field':'_id'}"));
+    Assert.assertEquals(8, saveResponse.getNumSaved());
+    Assert.assertEquals(8, coll.count());
+    List<DocCtx> documents = ctx.getInputDocuments();
+    for (int i = 0; i < 7; i++) {
+      Assert.assertFalse(documents.get(i).hasErrors());
+      Assert.assertEquals(i < 5 ? CRUDOperation.UPDATE : CRUDOperation.INSERT, documents.get(i).getCRUDOperationPerformed());
+      if (i < 5) {
+        Assert.assertNull(documents.get(i).getOriginalDocument());
+      }
+      DBObject dbDoc = coll.findOne(new BasicDBObject("_id", "save" + i));
+      Assert.assertEquals("saved" + i, dbDoc.get("field1"));
+      Assert.assertEquals(1, DocVerUtil.getVersionList(dbDoc).size());
+    }
+    DBObject dbDoc = coll.findOne(new BasicDBObject("_id", "save0"));
+    Assert.assertEquals("x", dbDoc.get("unknownField"));
+    Assert.assertFalse(dbDoc.containsField("field2"));
+    Assert.assertTrue(documents.get(7).hasErrors() ^ documents.get(8).hasErrors());
+  }
+
+  @Test
+  public void ingestTest() throws Exception {
+    ControllerConfiguration cfg = new ControllerConfiguration();
+    cfg.setOptions((ObjectNode) json("{'ingestChunkSize': 3}"));
+    MongoCRUDController ingestController = new MongoCRUDController(cfg, dbResolver);
+
+    EntityMetadata md = getMd("./testMetadata.json");
+    TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    StringBuilder ndjson = new StringBuilder();
+    for (int i = 0; i < 7; i++) {
+      // The 6th document has the same id as the 2nd one
+      ndjson.append("{\"_id\":\"ingest").append(i == 5 ? 1 : i).append("\",\"field1\":\"value").append(i).append("\"}\n");
+    }
+    List<IngestResult.Chunk> chunks = new ArrayList<>();
+    IngestResult result = ingestController.ingest(ctx, new ByteArrayInputStream(ndjson.toString().getBytes("UTF-8")), chunks::add);
+
+    Assert.assertNull(result.getError());
+    Assert.assertEquals(7, result.getNumRead());
+    Assert.assertEquals(6, result.getNumInserted());
+    Assert.assertEquals(1, result.getNumFailed());
+    Assert.assertEquals(3, chunks.size());
+    Assert.assertEquals(3, chunks.get(1).getStartIndex());
+    Assert.assertEquals(1, chunks.get(2).getNumDocs());
+    Assert.assertEquals(1, chunks.get(1).getErrors().size());
+    Assert.assertEquals(MongoCrudConstants.ERR_DUPLICATE, chunks.get(1).getErrors().get(5L).get(0).getErrorCode());
+    Assert.assertEquals(6, coll.count());
+    Assert.assertEquals("value1", coll.findOne(new BasicDBObject("_id", "ingest1")).get("field1"));
+  }
+
   @Test
   public void saveTest_ifsame() throws Exception {
     EntityMetadata md = getMd("./testMetadata.json");
@@ -1374,6 +1564,68 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
 
   }
 
+  @Test
+  public void updatePushdownTest() throws Exception {
+    ControllerConfiguration cfg = new ControllerConfiguration();
+    cfg.setOptions((ObjectNode) json("{'updatePushdown': true}"));
+    MongoCRUDController pushdownController = new MongoCRUDController(cfg, dbResolver);
+
+    EntityMetadata md = getMd("./testMetadata.json");
+    TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+    ctx.add(md);
+    List<JsonDoc> docs = new ArrayList<>();
+    int numDocs = 10;
+    for (int i = 0; i < numDocs; i++) {
+      JsonDoc doc = new JsonDoc(loadJsonNode("./testdata1.json"));
+      doc.modify(new Path("field1"), nodeFactory.textNode("doc" + i), false);
+      doc.modify(new Path("field3"), nodeFactory.numberNode(i), false);
+      docs.add(doc);
+    }
+    addDocuments(ctx, docs);
+    pushdownController.insert(ctx, projection("{'field':'_id'}"));
+
+    ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+    ctx.add(md);
+    CRUDUpdateResponse upd = pushdownController.update(ctx,
+        query("{'field':'field3','op':'>=','rvalue':5}"),
+        update("{ '$set': { 'field2' : 'flipped' } }"),
+        null);
+    Assert.assertEquals(PushdownUpdater.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+    Assert.assertEquals(5, upd.getNumMatched());
+    Assert.assertEquals(5, upd.getNumUpdated());
+    try (DBCursor c = coll.find(new BasicDBObject("field2", "flipped"))) {
+      Assert.assertEquals(5, c.count());
+      while (c.hasNext()) {
+        Assert.assertNotNull(DocVerUtil.getVersionList(c.next()));
+      }
+    }
+
+    // A projection requires the documents, so the update is done by reading them
+    ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+    ctx.add(md);
+    upd = pushdownController.update(ctx,
+        query("{'field':'field3','op':'<','rvalue':5}"),
+        update("{ '$set': { 'field2' : 'flipped' } }"),
+        projection("{'field':'_id'}"));
+    Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+    Assert.assertEquals(5, upd.getNumUpdated());
+
+    // Setting a field to null removes it, as a read-modify-write update does
+    ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+    ctx.add(md);
+    upd = pushdownController.update(ctx,
+        query("{'field':'field3','op':'>=','rvalue':5}"),
+        update("{ '$set': { 'field2' : null } }"),
+        null);
+    Assert.assertEquals(5, upd.getNumUpdated());
+    try (DBCursor c = coll.find(new BasicDBObject("field3", new BasicDBObject("$gte", 5)))) {
+      Assert.assertEquals(5, c.count());
+      while (c.hasNext()) {
+        Assert.assertFalse(c.next().containsField("field2"));
+      }
+    }
+  }
+
   @Test
   public void updateTest() throws Exception {
     EntityMetadata md = getMd("./testMetadata.json");
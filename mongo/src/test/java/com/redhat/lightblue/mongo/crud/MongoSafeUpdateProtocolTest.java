@@ -134,6 +134,47 @@ public class MongoSafeUpdateProtocolTest extends AbstractMongoCrudTest {
         Assert.assertEquals(MongoCrudConstants.ERR_DUPLICATE,ci.errors.get(5).getErrorCode());        
     }
 
+    @Test
+    public void diffUpdateTest() throws Exception {
+        for(int i=0;i<10;i++) {
+            coll.insert(new BasicDBObject("_id",Integer.toString(i)).append("field","field"+i).append("a","b").
+                        append("large","0123456789012345678901234567890123456789"));
+        }
+        BsonMerge merge=new BsonMerge(getMd("./testMetadata.json"));
+        updater.getCfg().setFailureRetryCount(0);
+        DBCursor cursor=coll.find();
+        while(cursor.hasNext()) {
+            DBObject doc=cursor.next();
+            DBObject newDoc=(DBObject)((BasicDBObject)doc).copy();
+            newDoc.put("field","updated"+doc.get("_id"));
+            newDoc.removeField("a");
+            DBObject update=DocDiff.getUpdate(merge,doc,newDoc);
+            Assert.assertEquals("updated"+doc.get("_id"),((DBObject)update.get("$set")).get("field"));
+            Assert.assertTrue(((DBObject)update.get("$unset")).containsField("a"));
+            Assert.assertFalse(((DBObject)update.get("$set")).containsField("large"));
+            updater.addDoc(newDoc,update);
+        }
+        cursor.close();
+        BatchUpdate.CommitInfo ci=updater.commit();
+        Assert.assertFalse(hasErrors(ci));
+
+        cursor=coll.find();
+        while(cursor.hasNext()) {
+            DBObject doc=cursor.next();
+            Assert.assertEquals("updated"+doc.get("_id"),doc.get("field"));
+            Assert.assertNull(doc.get("a"));
+            Assert.assertNotNull(doc.get("large"));
+            Assert.assertEquals(1,DocVerUtil.getVersionList(doc).size());
+        }
+        cursor.close();
+
+        // Replacing all the fields is not smaller than the document
+        DBObject doc=coll.findOne(new BasicDBObject("_id","0"));
+        DBObject newDoc=new BasicDBObject("_id","0").append("x","0123456789012345678901234567890123456789").
+            append("y","0123456789012345678901234567890123456789");
+        Assert.assertNull(DocDiff.getUpdate(merge,doc,newDoc));
+    }
+
     private boolean hasErrors(BatchUpdate.CommitInfo ci) {
         return !ci.errors.isEmpty()||!ci.lostDocs.isEmpty();
     }
@@ -176,6 +217,41 @@ public class MongoSafeUpdateProtocolTest extends AbstractMongoCrudTest {
         Assert.assertEquals(MongoCrudConstants.ERR_CONCURRENT_UPDATE,ci.errors.get(5).getErrorCode());
     }
     
+    @Test
+    public void batchedRetryTest() throws Exception {
+        insert50();
+
+        TestUpdater updater1=new TestUpdater(coll);
+        updater1.getCfg().setFailureRetryCount(2);
+        DBCursor cursor=coll.find(new BasicDBObject("_id",new BasicDBObject("$lte","19")));
+        while(cursor.hasNext()) {
+            DBObject doc=cursor.next();
+            doc.put("field","updated1"+doc.get("_id").toString());
+            updater1.addDoc(doc);
+        }
+        cursor.close();
+
+        MongoSafeUpdateProtocol updater2=new TestUpdater(coll);
+        cursor=coll.find(new BasicDBObject("_id",new BasicDBObject("$lte","15")));
+        while(cursor.hasNext()) {
+            DBObject doc=cursor.next();
+            doc.put("field","updated2"+doc.get("_id").toString());
+            updater2.addDoc(doc);
+        }
+        cursor.close();
+        Assert.assertFalse(hasErrors(updater2.commit()));
+
+        long retried=MongoSafeUpdateProtocol.CONTENTION_STATS.getRetriedDocs();
+        long succeeded=MongoSafeUpdateProtocol.CONTENTION_STATS.getSuccessfulRetries();
+        // The 6 docs modified by updater2 are retried, and written in one round
+        BatchUpdate.CommitInfo ci=updater1.commit();
+        Assert.assertFalse(hasErrors(ci));
+        Assert.assertEquals(6,updater1.numRetries);
+        Assert.assertEquals(6,MongoSafeUpdateProtocol.CONTENTION_STATS.getRetriedDocs()-retried);
+        Assert.assertEquals(6,MongoSafeUpdateProtocol.CONTENTION_STATS.getSuccessfulRetries()-succeeded);
+        Assert.assertTrue(MongoSafeUpdateProtocol.CONTENTION_STATS.getHotIds(1000).containsKey(coll.getName()+":10"));
+    }
+
     @Test
     public void dupAndConcurrentUpdateTest() throws Exception {
         // unique index on field
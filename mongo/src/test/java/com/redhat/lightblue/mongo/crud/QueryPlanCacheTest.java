@@ -0,0 +1,110 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.crud;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.query.Projection;
+import com.redhat.lightblue.query.QueryExpression;
+
+public class QueryPlanCacheTest extends AbstractMongoCrudTest {
+
+    private EntityMetadata md;
+
+    @Override
+    @Before
+    public void setup() throws Exception {
+        super.setup();
+        md = getMd("./testMetadata.json");
+    }
+
+    @Test
+    public void projectionIsCachedAndCopied() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache(10);
+        Projection p = projection("{'field':'field2'}");
+        QueryExpression q = query("{'field':'field1','op':'=','rvalue':'a'}");
+        DBObject first = cache.getProjection(md, p, q, null, () -> new BasicDBObject("field2", 1));
+        first.put("modified", 1);
+        DBObject second = cache.getProjection(md, p, q, null, () -> {
+            throw new AssertionError("Not cached");
+        });
+        Assert.assertNull(second.get("modified"));
+        Assert.assertEquals(1, second.get("field2"));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void zeroSizeDisablesCache() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache(0);
+        Projection p = projection("{'field':'field2'}");
+        QueryExpression q = query("{'field':'field1','op':'=','rvalue':'a'}");
+        cache.getProjection(md, p, q, null, () -> new BasicDBObject());
+        cache.getProjection(md, p, q, null, () -> new BasicDBObject());
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void projectionIgnoresQueryValues() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache(10);
+        Projection p = projection("{'field':'field2'}");
+        cache.getProjection(md, p, query("{'field':'field1','op':'=','rvalue':'a'}"), null,
+                            () -> new BasicDBObject("field1", 1));
+        DBObject x = cache.getProjection(md, p, query("{'field':'field1','op':'=','rvalue':'b'}"), null,
+                                         () -> new BasicDBObject());
+        Assert.assertEquals(1, x.get("field1"));
+        Assert.assertEquals(1, cache.getHits());
+
+        cache.getProjection(md, p, query("{'field':'field3','op':'=','rvalue':'a'}"), null, () -> new BasicDBObject());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache(2);
+        Projection p1 = projection("{'field':'field1'}");
+        Projection p2 = projection("{'field':'field2'}");
+        Projection p3 = projection("{'field':'field3'}");
+        cache.getProjection(md, p1, null, null, () -> new BasicDBObject());
+        cache.getProjection(md, p2, null, null, () -> new BasicDBObject());
+        cache.getProjection(md, p1, null, null, () -> new BasicDBObject());
+        cache.getProjection(md, p3, null, null, () -> new BasicDBObject());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictions());
+        cache.getProjection(md, p1, null, null, () -> new BasicDBObject());
+        Assert.assertEquals(2, cache.getHits());
+    }
+
+    @Test
+    public void metadataReloadInvalidates() throws Exception {
+        QueryPlanCache cache = new QueryPlanCache(10);
+        Projection p = projection("{'field':'field2'}");
+        cache.getProjection(md, p, null, null, () -> new BasicDBObject());
+        EntityMetadata reloaded = getMd("./testMetadata.json");
+        cache.getProjection(reloaded, p, null, null, () -> new BasicDBObject());
+        Assert.assertEquals(0, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+    }
+}
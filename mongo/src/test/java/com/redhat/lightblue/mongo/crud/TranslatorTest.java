@@ -461,4 +461,26 @@ public class TranslatorTest extends AbstractMongoCrudTest {
         Assert.assertEquals("test",((ValueComparisonExpression)q).getRvalue().getValue().toString());
         Assert.assertEquals("$eq",((ValueComparisonExpression)q).getOp().toString());
     }
+
+    @Test
+    public void translationPlanMatchesMetadataWalk() throws Exception {
+        DBObject obj = BasicDBObject.parse("{'_id':'1','objectType':'test','field1':'a','field3':3,'field4':'1.5','field5':true,"
+                + "'field6':{'nf1':'x','nf3':4,'nf5':[1,null,3],'nf6':[],'nf7':{'nnf1':'y','nnf2':5},'extra':1},"
+                + "'field7':[{'elemf1':'e1','elemf3':1},null,{'elemf2':'e2'}],'notInMetadata':'z'}");
+        DocTranslator.TranslatedDoc compiled = docTranslator.toJson(obj);
+        DocTranslator.TranslatedDoc walked = docTranslator.toJsonByMetadataWalk(obj, md);
+        Assert.assertEquals(walked.doc.getRoot(), compiled.doc.getRoot());
+        Assert.assertSame(TranslationPlan.get(md), TranslationPlan.get(md));
+
+        // Resolved references are skipped by both
+        EntityMetadata refMd = getMd("./testMetadataRef.json");
+        EntityMetadata referenced = getMd("./testMetadata.json");
+        CompositeMetadata cmd = CompositeMetadata.buildCompositeMetadata(refMd, (injectionField, entityName, version) -> referenced);
+        obj = BasicDBObject.parse("{'_id':'1','objectType':'test','field1':'a','field2':[{'_id':'2','field1':'b'}],"
+                + "'field7':[{'elemf1':[{'_id':'3'}],'elemf2':'e2'}]}");
+        compiled = docTranslator.toJson(obj, cmd);
+        walked = docTranslator.toJsonByMetadataWalk(obj, cmd);
+        Assert.assertEquals(walked.doc.getRoot(), compiled.doc.getRoot());
+        Assert.assertNull(compiled.doc.get(new Path("field2")));
+    }
 }
@@ -30,6 +30,7 @@ import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.CRUDSaveResponse;
 import com.redhat.lightblue.crud.CRUDUpdateResponse;
 import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.MetadataListener;
 import com.redhat.lightblue.metadata.MetadataStatus;
@@ -53,8 +54,15 @@ import org.junit.Before;
 import org.junit.ClassRule;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class CacheTest {
 
@@ -191,4 +199,159 @@ public class CacheTest {
         Assert.assertNull(cache.lookup(coll, "testEntity", "1.0.0"));
     }
 
+    private EntityMetadata newEntity(String name) {
+        EntityMetadata e = new EntityMetadata(name);
+        e.setVersion(new Version("1.0.0", null, "some text blah blah"));
+        e.setStatus(MetadataStatus.ACTIVE);
+        e.setDataStore(new MongoDataStore(null, null, "testCollection"));
+        e.getFields().put(new SimpleField("field1", StringType.TYPE));
+        return e;
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache bounded = new MetadataCache();
+        bounded.setCacheParams(10000l, 10000l);
+        bounded.setMaxEntries(2);
+        // The first lookup initializes the collection version
+        Assert.assertNull(bounded.lookup(coll, "e1", "1.0.0"));
+        bounded.put(newEntity("e1"));
+        bounded.put(newEntity("e2"));
+        // e1 is used after e2, so e2 is the least recently used
+        Assert.assertNotNull(bounded.lookup(coll, "e1", "1.0.0"));
+        bounded.put(newEntity("e3"));
+
+        Assert.assertEquals(2, bounded.getSize());
+        Assert.assertEquals(1, bounded.getEvictions());
+        Assert.assertNotNull(bounded.lookup(coll, "e1", "1.0.0"));
+        Assert.assertNull(bounded.lookup(coll, "e2", "1.0.0"));
+        Assert.assertNotNull(bounded.lookup(coll, "e3", "1.0.0"));
+        Assert.assertEquals(3, bounded.getHits());
+        Assert.assertEquals(2, bounded.getMisses());
+    }
+
+    @Test
+    public void entityInvalidationTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache local = new MetadataCache();
+        local.setCacheParams(10l, 10000l);
+        Assert.assertNull(local.lookup(coll, "e1", "1.0.0"));
+        local.put(newEntity("e1"));
+        local.put(newEntity("e2"));
+
+        // e1 is updated by another node
+        new MetadataCache().updateEntityVersion(coll, "e1");
+        Thread.sleep(11);
+        Assert.assertNull(local.lookup(coll, "e1", "1.0.0"));
+        Assert.assertNotNull(local.lookup(coll, "e2", "1.0.0"));
+
+        // Changes without entity stamps invalidate everything
+        coll.update(new BasicDBObject("_id", "collectionVersion"), new BasicDBObject("$inc", new BasicDBObject("collectionVersion", 1)));
+        Thread.sleep(11);
+        Assert.assertNull(local.lookup(coll, "e2", "1.0.0"));
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache local = new MetadataCache();
+        local.setCacheParams(10000l, 10000l);
+        AtomicInteger numLoads = new AtomicInteger();
+        Supplier<EntityMetadata> loader = () -> {
+            numLoads.incrementAndGet();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+            return newEntity("e1");
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<EntityMetadata>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(pool.submit(() -> local.get(coll, "e1", "1.0.0", loader)));
+            }
+            EntityMetadata first = results.get(0).get();
+            for (Future<EntityMetadata> f : results) {
+                Assert.assertSame(first, f.get());
+            }
+            Assert.assertEquals(1, numLoads.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void failedLoadTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache local = new MetadataCache();
+        local.setCacheParams(10000l, 10000l);
+        try {
+            local.get(coll, "e1", "1.0.0", () -> {
+                throw new OutOfMemoryError();
+            });
+            Assert.fail();
+        } catch (OutOfMemoryError e) {
+        }
+        // The failed load is not left running
+        EntityMetadata md = newEntity("e1");
+        Assert.assertSame(md, local.get(coll, "e1", "1.0.0", () -> md));
+    }
+
+    @Test
+    public void refreshAheadTest() throws Exception {
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache local = new MetadataCache();
+        local.setCacheParams(10000l, 500l);
+        local.setRefreshAhead(400l);
+        AtomicInteger numLoads = new AtomicInteger();
+        Supplier<EntityMetadata> loader = () -> {
+            numLoads.incrementAndGet();
+            return newEntity("e1");
+        };
+        EntityMetadata loaded = local.get(coll, "e1", "1.0.0", loader);
+        Assert.assertEquals(1, numLoads.get());
+        Thread.sleep(150);
+        // Within the refresh-ahead period, the cached entry is returned and reloaded in the background
+        Assert.assertSame(loaded, local.get(coll, "e1", "1.0.0", loader));
+        for (int i = 0; i < 50 && numLoads.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, numLoads.get());
+    }
+
+    @Test
+    public void entityInfoCacheTest() throws Exception {
+        cache.setCacheParams(10000l, 10000l);
+        md.createNewMetadata(newEntity("e1"));
+
+        EntityInfo info = md.getEntityInfo("e1");
+        Assert.assertNull(info.getDefaultVersion());
+        Assert.assertEquals(1, md.getEntityNames().length);
+        Assert.assertEquals(1, md.getEntityVersions("e1").length);
+        // A change that bypasses the stamps is not seen, the entity info is cached
+        DBCollection coll = db.getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        coll.update(new BasicDBObject("_id", "e1|"), new BasicDBObject("$set", new BasicDBObject("defaultVersion", "1.0.0")));
+        Assert.assertNull(md.getEntityInfo("e1").getDefaultVersion());
+        // Callers do not share the cached objects
+        Assert.assertNotSame(info, md.getEntityInfo("e1"));
+        info.setDefaultVersion("9.9.9");
+        Assert.assertNull(md.getEntityInfo("e1").getDefaultVersion());
+        md.getEntityVersions("e1")[0].setChangelog("changed");
+        Assert.assertEquals("some text blah blah", md.getEntityVersions("e1")[0].getChangelog());
+
+        // Another entity does not invalidate e1, but changes entity names
+        md.createNewMetadata(newEntity("e2"));
+        Assert.assertNull(md.getEntityInfo("e1").getDefaultVersion());
+        Assert.assertEquals(2, md.getEntityNames().length);
+
+        // A new version invalidates e1
+        EntityMetadata v2 = newEntity("e1");
+        v2.setVersion(new Version("2.0.0", null, "next"));
+        md.createNewSchema(v2);
+        Assert.assertEquals("1.0.0", md.getEntityInfo("e1").getDefaultVersion());
+        Assert.assertEquals(2, md.getEntityVersions("e1").length);
+    }
+
 }